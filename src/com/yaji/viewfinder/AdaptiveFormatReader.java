@@ -0,0 +1,151 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Reader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.aztec.AztecReader;
+import com.google.zxing.datamatrix.DataMatrixReader;
+import com.google.zxing.maxicode.MaxiCodeReader;
+import com.google.zxing.oned.MultiFormatOneDReader;
+import com.google.zxing.pdf417.PDF417Reader;
+import com.google.zxing.qrcode.QRCodeReader;
+
+/*
+ * Replacement of MultiFormatReader that orders its readers by what has been decoded before. MultiFormatReader tries its readers in a fixed
+ * order whatever the hints say, so formats never seen in this deployment run first on every frame for nothing. Here the readers of the
+ * profile are tried by their hit count in FormatStats, and readers of rare formats are skipped except on every
+ * FormatStats.EXPLORE_INTERVAL-th frame, so that they still get a chance. Without statistics the order is the one of MultiFormatReader. A
+ * profile of a single reader, like the default QR code one, has nothing to order or skip.
+ * Not thread safe, like the readers in it.
+ */
+public class AdaptiveFormatReader implements Reader {
+    private static final EnumSet<BarcodeFormat> ONED_FORMATS = EnumSet.of(BarcodeFormat.UPC_A, BarcodeFormat.UPC_E, BarcodeFormat.EAN_13,
+            BarcodeFormat.EAN_8, BarcodeFormat.CODABAR, BarcodeFormat.CODE_39, BarcodeFormat.CODE_93, BarcodeFormat.CODE_128,
+            BarcodeFormat.ITF, BarcodeFormat.RSS_14, BarcodeFormat.RSS_EXPANDED);
+
+    /*
+     * A reader and the name of its formats in the statistics.
+     */
+    private static class Entry {
+        final String mGroup;
+        final Reader mReader;
+
+        Entry(String group, Reader reader) {
+            mGroup = group;
+            mReader = reader;
+        }
+    }
+
+    private final Map<DecodeHintType, Object> mHints;
+    private final FormatStats mStats;
+    // In the default order.
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+    private final List<Entry> mOrdered = new ArrayList<Entry>();
+
+    /*
+     * Constructor. stats: null to keep the default order.
+     */
+    public AdaptiveFormatReader(DecodeProfile profile, FormatStats stats) {
+        mHints = profile.getHints();
+        mStats = stats;
+
+        // Same readers, and the same default order, as MultiFormatReader.setHints().
+        EnumSet<BarcodeFormat> formats = profile.getFormats();
+        boolean all = formats == null;
+        boolean oneD = all;
+        if (!all) {
+            for (BarcodeFormat format : formats) {
+                if (ONED_FORMATS.contains(format)) {
+                    oneD = true;
+                }
+            }
+        }
+        if (oneD && !profile.isTryHarder()) {
+            mEntries.add(new Entry("oned", new MultiFormatOneDReader(mHints)));
+        }
+        if (all || formats.contains(BarcodeFormat.QR_CODE)) {
+            mEntries.add(new Entry("qr", new QRCodeReader()));
+        }
+        if (all || formats.contains(BarcodeFormat.DATA_MATRIX)) {
+            mEntries.add(new Entry("data_matrix", new DataMatrixReader()));
+        }
+        if (all || formats.contains(BarcodeFormat.AZTEC)) {
+            mEntries.add(new Entry("aztec", new AztecReader()));
+        }
+        if (all || formats.contains(BarcodeFormat.PDF_417)) {
+            mEntries.add(new Entry("pdf417", new PDF417Reader()));
+        }
+        if (all || formats.contains(BarcodeFormat.MAXICODE)) {
+            mEntries.add(new Entry("maxicode", new MaxiCodeReader()));
+        }
+        if (oneD && profile.isTryHarder()) {
+            mEntries.add(new Entry("oned", new MultiFormatOneDReader(mHints)));
+        }
+        mOrdered.addAll(mEntries);
+    }
+
+    /*
+     * Decode with the hints of the profile. Checksum and format errors are reported as NotFoundException, like MultiFormatReader does.
+     */
+    public Result decode(BinaryBitmap image) throws NotFoundException {
+        return decode(image, mHints);
+    }
+
+    public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+        List<Entry> entries = order();
+        boolean skipRare = entries.size() > 1 && mStats != null && !mStats.isExploring();
+        for (Entry entry : entries) {
+            if (skipRare && mStats.isRare(entry.mGroup)) {
+                continue;
+            }
+            try {
+                Result result = entry.mReader.decode(image, hints);
+                if (mStats != null) {
+                    mStats.recordHit(entry.mGroup);
+                }
+                return result;
+            } catch (ReaderException e) {
+                // Try the next reader.
+            }
+        }
+        throw NotFoundException.getNotFoundInstance();
+    }
+
+    public void reset() {
+        for (Entry entry : mEntries) {
+            entry.mReader.reset();
+        }
+    }
+
+    /*
+     * Readers by hit count, the default order among equal counts.
+     */
+    private List<Entry> order() {
+        if (mStats == null || mEntries.size() < 2) {
+            return mEntries;
+        }
+        final int[] hits = new int[mEntries.size()];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = mStats.getHits(mEntries.get(i).mGroup);
+        }
+        Collections.sort(mOrdered, new Comparator<Entry>() {
+            public int compare(Entry lhs, Entry rhs) {
+                int l = mEntries.indexOf(lhs);
+                int r = mEntries.indexOf(rhs);
+                return (hits[l] != hits[r]) ? hits[r] - hits[l] : l - r;
+            }
+        });
+        return mOrdered;
+    }
+}
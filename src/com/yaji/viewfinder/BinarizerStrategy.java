@@ -0,0 +1,152 @@
+package com.yaji.viewfinder;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+/*
+ * Chooses the binarizers a frame is decoded with. GlobalHistogramBinarizer is much cheaper than HybridBinarizer, but only works when the
+ * frame is evenly lit with clear contrast. A quick histogram check on a few sampled rows decides whether the global one is tried first;
+ * Hybrid is always tried when it fails, so no code is lost. The strategy also remembers for the session how often trying the global
+ * binarizer first has paid off, and stops doing so while it keeps failing. Thread safe.
+ */
+public class BinarizerStrategy {
+    public static final int GLOBAL = 0;
+    public static final int HYBRID = 1;
+
+    private static final int[] ORDER_GLOBAL_FIRST = { GLOBAL, HYBRID };
+    private static final int[] ORDER_HYBRID_ONLY = { HYBRID };
+
+    // Rows sampled for the contrast check.
+    private static final int SAMPLE_ROWS = 16;
+    // Minimum spread between the 5th and the 95th percentile of the luminance.
+    private static final int MIN_SPREAD = 96;
+    // Maximum difference of the mean luminance between the quadrants, more means uneven lighting.
+    private static final int MAX_SHADING = 40;
+    // Score bounds. Global first is skipped at the lower bound, and retried once every RETRY_INTERVAL frames then.
+    private static final int MAX_SCORE = 4;
+    private static final int MIN_SCORE = -4;
+    private static final int RETRY_INTERVAL = 16;
+
+    private int mScore;
+    private int mSkipped;
+    private int mGlobalHits;
+    private int mEscalations;
+
+    /*
+     * Create a binarizer of the given kind.
+     */
+    public static Binarizer create(int kind, LuminanceSource source) {
+        return (kind == GLOBAL) ? new GlobalHistogramBinarizer(source) : new HybridBinarizer(source);
+    }
+
+    public static String getName(int kind) {
+        return (kind == GLOBAL) ? "global" : "hybrid";
+    }
+
+    /*
+     * Binarizers to try for the source, in order.
+     */
+    public int[] getOrder(LuminanceSource source) {
+        if (!isHighContrast(source)) {
+            return ORDER_HYBRID_ONLY;
+        }
+        synchronized (this) {
+            if (mScore <= MIN_SCORE && ++mSkipped % RETRY_INTERVAL != 0) {
+                // The global binarizer has been failing in this session, retry it only once in a while.
+                return ORDER_HYBRID_ONLY;
+            }
+        }
+        return ORDER_GLOBAL_FIRST;
+    }
+
+    /*
+     * Report which binarizer of the order decoded the frame, -1 if none did.
+     */
+    public synchronized void report(int[] order, int succeeded) {
+        if (order.length < 2 || succeeded < 0) {
+            // Nothing learned: Hybrid only, or no code in view.
+            return;
+        }
+        if (order[succeeded] == GLOBAL) {
+            mGlobalHits++;
+            mScore = Math.min(MAX_SCORE, mScore + 1);
+        } else {
+            mEscalations++;
+            mScore = Math.max(MIN_SCORE, mScore - 1);
+        }
+    }
+
+    /*
+     * The number of frames decoded with the global binarizer.
+     */
+    public synchronized int getGlobalHitCount() {
+        return mGlobalHits;
+    }
+
+    /*
+     * The number of frames the global binarizer failed and Hybrid decoded.
+     */
+    public synchronized int getEscalationCount() {
+        return mEscalations;
+    }
+
+    /*
+     * Sample a few rows: the luminance must spread widely (dark modules on a light background), and the quadrants must be lit evenly.
+     * Buffers are local, so that the tiles of a frame sharing the strategy are checked concurrently.
+     */
+    private static boolean isHighContrast(LuminanceSource source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width < 2 || height < SAMPLE_ROWS) {
+            return false;
+        }
+        int[] histogram = new int[256];
+        byte[] row = null;
+        long[] quadrantSums = new long[4];
+        int[] quadrantCounts = new int[4];
+        int halfWidth = width / 2;
+        for (int i = 0; i < SAMPLE_ROWS; i++) {
+            int y = (height * (2 * i + 1)) / (2 * SAMPLE_ROWS);
+            row = source.getRow(y, row);
+            int quadrant = (y < height / 2) ? 0 : 2;
+            for (int x = 0; x < width; x++) {
+                int v = row[x] & 0xff;
+                histogram[v]++;
+                int q = quadrant + ((x < halfWidth) ? 0 : 1);
+                quadrantSums[q] += v;
+                quadrantCounts[q]++;
+            }
+        }
+
+        // Percentiles.
+        int total = width * SAMPLE_ROWS;
+        int low = -1;
+        int high = -1;
+        int count = 0;
+        for (int v = 0; v < 256; v++) {
+            count += histogram[v];
+            if (low < 0 && count >= total / 20) {
+                low = v;
+            }
+            if (high < 0 && count >= total - total / 20) {
+                high = v;
+                break;
+            }
+        }
+        if (high - low < MIN_SPREAD) {
+            return false;
+        }
+
+        // Shading.
+        int min = 255;
+        int max = 0;
+        for (int q = 0; q < 4; q++) {
+            int mean = (int) (quadrantSums[q] / quadrantCounts[q]);
+            min = Math.min(min, mean);
+            max = Math.max(max, mean);
+        }
+        return max - min <= MAX_SHADING;
+    }
+}
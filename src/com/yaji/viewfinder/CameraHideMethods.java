@@ -92,6 +92,13 @@ public class CameraHideMethods {
         }
     }
 
+    /*
+     * Check if we have both Camera:addCallbackBuffer() and Camera:setPreviewCallbackWithBuffer().
+     */
+    public boolean hasCallbackBuffer() {
+        return mMethodAddCallbackBuffer != null && mMethodSetPreviewCallbackWithBuffer != null;
+    }
+
     /*
      * Reflection method for void previewEnabled() in Camera class.
      */
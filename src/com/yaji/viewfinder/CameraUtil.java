@@ -8,6 +8,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
 import android.media.ExifInterface;
@@ -263,6 +264,26 @@ public class CameraUtil {
         }
     }
 
+    /*
+     * Set preview format. The format the camera reports by default is what its HAL produces natively, so keep it whenever we can convert it,
+     * and fall back to NV21, which every camera supports.
+     */
+    public void setPreviewFormatToCamParam(Camera.Parameters params) {
+        int current = params.getPreviewFormat();
+        if (!YuvFormat.isSupported(current)) {
+            params.setPreviewFormat(YuvFormat.NV21);
+            Log.d(LOG_TAG, "CameraUtil.setPreviewFormatToCamParam(), " + current + " not supported, use NV21");
+        }
+    }
+
+    /*
+     * Layout of the preview frames delivered with the given parameters.
+     */
+    public static YuvFormat getPreviewYuvFormat(Camera.Parameters params) {
+        Size size = params.getPreviewSize();
+        return YuvFormat.create(params.getPreviewFormat(), size.width, size.height);
+    }
+
     /*
      * Camera hardware orientation.
      */
@@ -332,6 +353,74 @@ public class CameraUtil {
         return result;
     }
 
+    /*
+     * Transform that makes the whole preview frame upright, same rotation as the EXIF tag. Mirrored as well for the front camera if
+     * mirrorFrontCamera is set, so that the result looks like the preview on the screen.
+     */
+    public FrameTransform createFrameTransform(int displayRotation, int previewWidth, int previewHeight, boolean mirrorFrontCamera) {
+        int degree = getEXIFRotation(displayRotation);
+        boolean mirror = mirrorFrontCamera && mCameraId == CameraHideMethods.CameraInfo.CAMERA_FACING_FRONT;
+        return new FrameTransform(previewWidth, previewHeight, degree, mirror);
+    }
+
+    /*
+     * Map a rectangle on the display into preview frame coordinates. The preview frame is mirrored for the front camera, rotated by
+     * getCameraHWOrientation() and stretched over the whole display, so the inverse of those is applied here. The result is clipped to the
+     * frame, and is empty if the rectangle is out of the preview.
+     */
+    public Rect mapDisplayRectToPreview(Rect displayRect, int displayRotation, int displayWidth, int displayHeight, int previewWidth,
+            int previewHeight) {
+        int degree = getCameraHWOrientation(displayRotation);
+        boolean swap = degree == 90 || degree == 270;
+
+        // Display to the rotated preview shown on the display.
+        int shownWidth = swap ? previewHeight : previewWidth;
+        int shownHeight = swap ? previewWidth : previewHeight;
+        int u0 = (int) Math.floor((float) displayRect.left * shownWidth / displayWidth);
+        int u1 = (int) Math.ceil((float) displayRect.right * shownWidth / displayWidth);
+        int v0 = (int) Math.floor((float) displayRect.top * shownHeight / displayHeight);
+        int v1 = (int) Math.ceil((float) displayRect.bottom * shownHeight / displayHeight);
+
+        // Rotated preview to the preview frame, i.e. rotate back by degree.
+        int left, top, right, bottom;
+        if (degree == 90) {
+            // Shown (u, v) = (previewHeight - y, x)
+            left = v0;
+            right = v1;
+            top = previewHeight - u1;
+            bottom = previewHeight - u0;
+        } else if (degree == 180) {
+            left = previewWidth - u1;
+            right = previewWidth - u0;
+            top = previewHeight - v1;
+            bottom = previewHeight - v0;
+        } else if (degree == 270) {
+            // Shown (u, v) = (y, previewWidth - x)
+            left = previewWidth - v1;
+            right = previewWidth - v0;
+            top = u0;
+            bottom = u1;
+        } else {
+            left = u0;
+            right = u1;
+            top = v0;
+            bottom = v1;
+        }
+
+        // The front camera preview is mirrored horizontally before being rotated.
+        if (mCameraId == CameraHideMethods.CameraInfo.CAMERA_FACING_FRONT) {
+            int l = left;
+            left = previewWidth - right;
+            right = previewWidth - l;
+        }
+
+        Rect rect = new Rect(left, top, right, bottom);
+        if (!rect.intersect(0, 0, previewWidth, previewHeight)) {
+            rect.set(0, 0, 0, 0);
+        }
+        return rect;
+    }
+
     /*
      * Orientation
      */
@@ -0,0 +1,163 @@
+package com.yaji.viewfinder;
+
+import java.util.LinkedList;
+
+import android.os.Process;
+import android.util.Log;
+
+/*
+ * Persists captured pictures on a thread of its own, so that the camera callbacks hand a capture off and restart the preview at once,
+ * whatever the speed of the storage. The queue is bounded: the captures waiting in it hold whole frames. What happens to a capture
+ * submitted while the queue is full depends on the policy. Submitting never waits, it is called on the main thread.
+ */
+public class CaptureQueue {
+    private static final String LOG_TAG = "yaji";
+
+    /*
+     * Policies when the queue is full.
+     */
+    // Discard the oldest capture waiting.
+    public static final int POLICY_DROP_OLDEST = 0;
+    // Reject the new capture.
+    public static final int POLICY_REJECT = 1;
+
+    /*
+     * A picture to be persisted.
+     */
+    public interface Capture {
+        // Write the picture, on the thread of the queue.
+        void persist();
+
+        // The picture is dropped without being written. Release what it holds.
+        void discard();
+    }
+
+    private final int mCapacity;
+    private final int mPolicy;
+    private final LinkedList<Capture> mQueue = new LinkedList<Capture>();
+    private boolean mPersisting;
+    private boolean mShutdown;
+    private int mDroppedCount;
+    private int mRejectedCount;
+
+    /*
+     * Constructor. capacity: the number of captures waiting, besides the one being persisted. policy: one of POLICY_*.
+     */
+    public CaptureQueue(int capacity, int policy) {
+        mCapacity = Math.max(1, capacity);
+        mPolicy = policy;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loop();
+            }
+        }, "yaji-capture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Queue the capture. Returns false if it has been rejected, it is discarded then.
+     */
+    public boolean submit(Capture capture) {
+        Capture dropped = null;
+        boolean accepted = true;
+        synchronized (this) {
+            if (!mShutdown && mQueue.size() >= mCapacity) {
+                switch (mPolicy) {
+                case POLICY_DROP_OLDEST:
+                    dropped = mQueue.removeFirst();
+                    mDroppedCount++;
+                    break;
+                default:
+                    accepted = false;
+                    break;
+                }
+            }
+            if (mShutdown) {
+                accepted = false;
+            }
+            if (accepted) {
+                mQueue.addLast(capture);
+                notifyAll();
+            } else {
+                mRejectedCount++;
+            }
+        }
+
+        // Outside the lock, discarding may take other locks.
+        if (dropped != null) {
+            Log.d(LOG_TAG, "CaptureQueue, full, oldest dropped");
+            dropped.discard();
+        }
+        if (!accepted) {
+            Log.d(LOG_TAG, "CaptureQueue, rejected");
+            capture.discard();
+        }
+        return accepted;
+    }
+
+    /*
+     * The number of captures waiting or being persisted.
+     */
+    public synchronized int getDepth() {
+        return mQueue.size() + (mPersisting ? 1 : 0);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /*
+     * Accept no more captures. Those queued are still persisted, then the thread ends.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        notifyAll();
+    }
+
+    private void loop() {
+        while (true) {
+            Capture capture;
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mShutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.w(LOG_TAG, "CaptureQueue interrupted", e);
+                    }
+                }
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                capture = mQueue.removeFirst();
+                mPersisting = true;
+            }
+            try {
+                capture.persist();
+            } catch (RuntimeException e) {
+                Log.w(LOG_TAG, "CaptureQueue, persist failed", e);
+            } finally {
+                synchronized (this) {
+                    mPersisting = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.yaji.viewfinder;
+
+import java.util.List;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/*
+ * Scan preview frames for QR codes in background while the preview keeps running. Frames are sampled at most once per interval, and
+ * decoded on the decode worker. A frame arriving while the worker is still busy is dropped, and a blurred or moving frame is skipped for
+ * the next one for a short while.
+ */
+public class ContinuousQRScanner implements PreviewBufferRing.FrameListener {
+    // A sampled frame not decoded within this time (or the interval, if longer) is abandoned, a newer one is more useful.
+    private static final long MIN_DEADLINE = 1000;
+    // A blurred or moving frame is skipped in favor of the next one, until this time after the first frame of the wait.
+    private static final long MAX_QUALITY_WAIT = 300;
+
+    /*
+     * Receiver of recognized codes, called on the handler thread.
+     */
+    public interface Listener {
+        void onQRCodeFound(QRResult result);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final QRDecodeWorker mWorker;
+    private final QRDecodeWorker.Callback mCallback = new QRDecodeWorker.Callback() {
+        public void onDecoded(QRDecodeWorker.Job job, List<QRResult> results) {
+            if (mActive && !results.isEmpty()) {
+                mListener.onQRCodeFound(results.get(0));
+            }
+        }
+    };
+
+    private volatile long mIntervalMillis;
+    private long mLastSampleTime;
+    private volatile boolean mActive = true;
+    // Read by dump() on another thread.
+    private volatile int mDroppedFrames;
+    private final FrameQuality mQuality = new FrameQuality();
+    private boolean mWaitingForQuality;
+    private long mQualityWaitStart;
+
+    /*
+     * Constructor.
+     */
+    public ContinuousQRScanner(Handler handler, Listener listener, QRDecodeWorker worker, long intervalMillis) {
+        mHandler = handler;
+        mListener = listener;
+        mWorker = worker;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /*
+     * Minimum time between two sampled frames.
+     */
+    public void setInterval(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    /*
+     * The number of sampled frames dropped because the decoder was still busy.
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /*
+     * The number of frames skipped because they were blurred or moving.
+     */
+    public int getRejectedFrames() {
+        return mQuality.getRejectedCount();
+    }
+
+    /*
+     * Stop scanning. Pending results are not delivered any more.
+     */
+    public void shutdown() {
+        mActive = false;
+    }
+
+    public void onPreviewFrame(byte[] data, PreviewBufferRing ring) {
+        long now = SystemClock.elapsedRealtime();
+        if (!mActive || now - mLastSampleTime < mIntervalMillis) {
+            return;
+        }
+        if (mWorker.getPendingCount() > 0) {
+            // The decoder is behind, skip this frame and let the camera have the buffer back.
+            mLastSampleTime = now;
+            mDroppedFrames++;
+            return;
+        }
+        YuvFormat format = ring.getFormat();
+        if (format == null) {
+            return;
+        }
+
+        // Decode only a sharp and still frame, waiting a little for one. Motion is measured between the frames of one wait.
+        if (!mWaitingForQuality) {
+            mQuality.reset();
+            mWaitingForQuality = true;
+            // From the first frame looked at, not from when the sample was due, which may be long ago after an idle time.
+            mQualityWaitStart = now;
+        }
+        long start = System.nanoTime();
+        boolean acceptable = mQuality.measure(data, format, null);
+        QRStageStats.get().record(QRStageStats.STAGE_QUALITY, System.nanoTime() - start, acceptable);
+        if (!acceptable && now - mQualityWaitStart < MAX_QUALITY_WAIT) {
+            return;
+        }
+        mWaitingForQuality = false;
+        mLastSampleTime = now;
+
+        // The worker keeps the buffer until the decode is done.
+        mWorker.submit(new QRDecodeWorker.Job(data, format, ring, QRDecodeWorker.MODE_COARSE_TO_FINE, null, Math.max(mIntervalMillis,
+                MIN_DEADLINE), mHandler, mCallback));
+    }
+}
@@ -0,0 +1,103 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.DecodeHintType;
+
+/*
+ * Named set of ZXing decode hints. A reader is configured once per profile and reused for every frame (see AdaptiveFormatReader),
+ * instead of letting MultiFormatReader rebuild its reader list and try every format on each decode.
+ */
+public class DecodeProfile {
+    // QR code only. The common case for this application.
+    public static final DecodeProfile QR = new DecodeProfile("qr", EnumSet.of(BarcodeFormat.QR_CODE), false, false);
+    // QR code only, spending more time for small or skewed codes.
+    public static final DecodeProfile QR_TRY_HARDER = new DecodeProfile("qr_try_harder", EnumSet.of(BarcodeFormat.QR_CODE), true, false);
+    // QR code only, the image contains nothing but an unrotated code. Skips detection entirely.
+    public static final DecodeProfile QR_PURE = new DecodeProfile("qr_pure", EnumSet.of(BarcodeFormat.QR_CODE), false, true);
+    // QR code and Data Matrix.
+    public static final DecodeProfile QR_DATA_MATRIX = new DecodeProfile("qr_data_matrix", EnumSet.of(BarcodeFormat.QR_CODE,
+            BarcodeFormat.DATA_MATRIX), false, false);
+    // Every format ZXing knows. Same as decoding without hints.
+    public static final DecodeProfile ALL = new DecodeProfile("all", null, false, false);
+
+    private static final DecodeProfile[] PROFILES = { QR, QR_TRY_HARDER, QR_PURE, QR_DATA_MATRIX, ALL };
+
+    private final String mName;
+    private final EnumSet<BarcodeFormat> mFormats;
+    private final boolean mTryHarder;
+    private final boolean mPureBarcode;
+
+    /*
+     * Constructor. formats: null means all formats.
+     */
+    public DecodeProfile(String name, EnumSet<BarcodeFormat> formats, boolean tryHarder, boolean pureBarcode) {
+        mName = name;
+        mFormats = formats;
+        mTryHarder = tryHarder;
+        mPureBarcode = pureBarcode;
+    }
+
+    /*
+     * Find a predefined profile by name. Returns QR for an unknown name.
+     */
+    public static DecodeProfile get(String name) {
+        for (DecodeProfile profile : PROFILES) {
+            if (profile.mName.equals(name)) {
+                return profile;
+            }
+        }
+        return QR;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /*
+     * Formats to be decoded, or null for all formats.
+     */
+    public EnumSet<BarcodeFormat> getFormats() {
+        return mFormats;
+    }
+
+    public boolean isQROnly() {
+        return mFormats != null && mFormats.size() == 1 && mFormats.contains(BarcodeFormat.QR_CODE);
+    }
+
+    public boolean isTryHarder() {
+        return mTryHarder;
+    }
+
+    public boolean isPureBarcode() {
+        return mPureBarcode;
+    }
+
+    /*
+     * Decode hints of this profile.
+     */
+    public Map<DecodeHintType, Object> getHints() {
+        Map<DecodeHintType, Object> hints = new EnumMap<DecodeHintType, Object>(DecodeHintType.class);
+        if (mFormats != null) {
+            Collection<BarcodeFormat> formats = new ArrayList<BarcodeFormat>(mFormats);
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, formats);
+        }
+        if (mTryHarder) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        if (mPureBarcode) {
+            hints.put(DecodeHintType.PURE_BARCODE, Boolean.TRUE);
+        }
+        return hints;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
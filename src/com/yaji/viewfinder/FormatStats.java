@@ -0,0 +1,149 @@
+package com.yaji.viewfinder;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/*
+ * How often each group of barcode formats has been decoded, kept in preferences across sessions, so that AdaptiveFormatReader can try
+ * the formats that actually occur first. Counts are halved once their total reaches MAX_TOTAL, so that a change of usage shows up in a
+ * while. Thread safe.
+ */
+public class FormatStats {
+    private static final String PREFS_NAME = "format_stats";
+    private static final String KEY_PREFIX = "hits_";
+
+    // Counts are halved at this total.
+    private static final int MAX_TOTAL = 1000;
+    // Nothing is rare before this many decodes have been seen.
+    private static final int MIN_HISTORY = 20;
+    // Groups with less share of the decodes than 1/RARE_SHARE are rare.
+    private static final int RARE_SHARE = 50;
+    // Saved every this many hits.
+    private static final int SAVE_INTERVAL = 10;
+    // Rare groups are tried on every this many frames.
+    private static final int EXPLORE_INTERVAL = 8;
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, Integer> mHits = new HashMap<String, Integer>();
+    private int mTotal;
+    private int mFrameCount;
+    private int mUnsaved;
+    // Snapshots taken, and the last one written. A snapshot older than the written one is not written any more.
+    private int mVersion;
+    private int mWrittenVersion;
+
+    /*
+     * Load the statistics saved in preferences.
+     */
+    public FormatStats(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith(KEY_PREFIX) && entry.getValue() instanceof Integer) {
+                int hits = (Integer) entry.getValue();
+                mHits.put(entry.getKey().substring(KEY_PREFIX.length()), hits);
+                mTotal += hits;
+            }
+        }
+    }
+
+    /*
+     * The number of decodes of the group.
+     */
+    public synchronized int getHits(String group) {
+        Integer hits = mHits.get(group);
+        return (hits != null) ? hits : 0;
+    }
+
+    /*
+     * True if the group has hardly ever been decoded in a long enough history.
+     */
+    public synchronized boolean isRare(String group) {
+        return mTotal >= MIN_HISTORY && getHits(group) * RARE_SHARE < mTotal;
+    }
+
+    /*
+     * Count a frame about to be decoded. Not saved.
+     */
+    public synchronized void countFrame() {
+        mFrameCount++;
+    }
+
+    /*
+     * True if rare groups are to be tried on the current frame.
+     */
+    public synchronized boolean isExploring() {
+        return mFrameCount % EXPLORE_INTERVAL == 0;
+    }
+
+    /*
+     * Count a decode of the group.
+     */
+    public synchronized void recordHit(String group) {
+        mHits.put(group, getHits(group) + 1);
+        mTotal++;
+        if (mTotal >= MAX_TOTAL) {
+            mTotal = 0;
+            for (Map.Entry<String, Integer> entry : mHits.entrySet()) {
+                entry.setValue(entry.getValue() / 2);
+                mTotal += entry.getValue();
+            }
+        }
+        if (++mUnsaved >= SAVE_INTERVAL) {
+            // Called on the decode threads, the preferences file is written in background.
+            final Map<String, Integer> snapshot = takeSnapshot();
+            final int version = mVersion;
+            WorkerPool.get().execute(new Runnable() {
+                public void run() {
+                    write(snapshot, version);
+                }
+            });
+        }
+    }
+
+    /*
+     * Write the statistics into preferences now, if anything has changed.
+     */
+    public void save() {
+        Map<String, Integer> snapshot;
+        int version;
+        synchronized (this) {
+            if (mUnsaved == 0) {
+                return;
+            }
+            snapshot = takeSnapshot();
+            version = mVersion;
+        }
+        write(snapshot, version);
+    }
+
+    private Map<String, Integer> takeSnapshot() {
+        mUnsaved = 0;
+        mVersion++;
+        return new HashMap<String, Integer>(mHits);
+    }
+
+    /*
+     * Write a snapshot, unless a newer one has been written already. Serialized on the preferences.
+     */
+    private void write(Map<String, Integer> snapshot, int version) {
+        synchronized (mPrefs) {
+            if (version <= mWrittenVersion) {
+                return;
+            }
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (Map.Entry<String, Integer> entry : snapshot.entrySet()) {
+                editor.putInt(KEY_PREFIX + entry.getKey(), entry.getValue());
+            }
+            editor.commit();
+            mWrittenVersion = version;
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Format stats: total " + mTotal + ", " + mHits + ", frames " + mFrameCount);
+    }
+}
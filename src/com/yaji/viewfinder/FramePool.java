@@ -0,0 +1,239 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/*
+ * Pool of frame sized objects (RGB and RGB565 buffers, frame copies and mutable bitmaps) shared by preview consumers, so that steady-state
+ * capture allocates nothing new. Only idle objects are kept, up to a memory budget. The budget follows the preview format: it is what one
+ * capture works with at most, a frame copy, an ARGB buffer and an ARGB_8888 bitmap, capped by a share of the heap. When that cap does not
+ * let everything in, buffers are evicted to keep the bitmaps, the most expensive to allocate again. Everything is dropped when the preview
+ * size or the camera changes, and objects of another size given back afterwards are not pooled. Once closed, nothing is pooled any more,
+ * objects given back are released. Thread safe.
+ */
+public class FramePool {
+    private static final String LOG_TAG = "yaji";
+
+    private final long mMaxBudgetBytes;
+    private long mBudgetBytes;
+    private long mPooledBytes;
+    private int mCameraId = -1;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameSize;
+    private boolean mClosed;
+
+    private final List<int[]> mRgbBuffers = new ArrayList<int[]>();
+    private final List<short[]> mRgb565Buffers = new ArrayList<short[]>();
+    private final List<byte[]> mFrameBuffers = new ArrayList<byte[]>();
+    private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+
+    /*
+     * Constructor. maxBudgetBytes: the most the pool may hold whatever the preview size.
+     */
+    public FramePool(long maxBudgetBytes) {
+        mMaxBudgetBytes = maxBudgetBytes;
+    }
+
+    /*
+     * Bytes of the objects one capture of the given format works with at most: a frame copy, an ARGB buffer and an ARGB_8888 bitmap.
+     */
+    public static long getWorkingSetBytes(YuvFormat format) {
+        return format.getFrameSize() + 8L * format.getWidth() * format.getHeight();
+    }
+
+    /*
+     * Set the camera and preview format the pooled objects are for. Drops everything if they changed.
+     */
+    public synchronized void configure(int cameraId, YuvFormat format) {
+        int width = format.getWidth();
+        int height = format.getHeight();
+        if (cameraId != mCameraId || width != mWidth || height != mHeight || format.getFrameSize() != mFrameSize) {
+            Log.d(LOG_TAG, "FramePool.configure(), cameraId:" + cameraId + ", size:" + width + "x" + height);
+            clear();
+            mCameraId = cameraId;
+            mWidth = width;
+            mHeight = height;
+            mFrameSize = format.getFrameSize();
+            mBudgetBytes = Math.min(mMaxBudgetBytes, getWorkingSetBytes(format));
+        }
+    }
+
+    /*
+     * Drop all pooled objects.
+     */
+    public synchronized void clear() {
+        for (Bitmap bmp : mBitmaps) {
+            bmp.recycle();
+        }
+        mBitmaps.clear();
+        mRgbBuffers.clear();
+        mRgb565Buffers.clear();
+        mFrameBuffers.clear();
+        mPooledBytes = 0;
+    }
+
+    /*
+     * Drop all pooled objects and pool no more. For captures still being saved when the owner goes away: what they give back afterwards
+     * is released instead of being kept by a pool nobody clears.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        clear();
+    }
+
+    /*
+     * Bytes idle pooled objects may hold for the current preview format.
+     */
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /*
+     * Bytes held by idle pooled objects.
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    /*
+     * RGB buffer of exactly the given number of pixels.
+     */
+    public synchronized int[] obtainRgb(int size) {
+        for (Iterator<int[]> it = mRgbBuffers.iterator(); it.hasNext();) {
+            int[] buffer = it.next();
+            if (buffer.length == size) {
+                it.remove();
+                mPooledBytes -= 4L * size;
+                return buffer;
+            }
+        }
+        return new int[size];
+    }
+
+    public synchronized void recycleRgb(int[] buffer) {
+        if (buffer != null && buffer.length == mWidth * mHeight && reserve(4L * buffer.length)) {
+            mRgbBuffers.add(buffer);
+        }
+    }
+
+    /*
+     * RGB565 buffer of exactly the given number of pixels.
+     */
+    public synchronized short[] obtainRgb565(int size) {
+        for (Iterator<short[]> it = mRgb565Buffers.iterator(); it.hasNext();) {
+            short[] buffer = it.next();
+            if (buffer.length == size) {
+                it.remove();
+                mPooledBytes -= 2L * size;
+                return buffer;
+            }
+        }
+        return new short[size];
+    }
+
+    public synchronized void recycleRgb565(short[] buffer) {
+        if (buffer != null && buffer.length == mWidth * mHeight && reserve(2L * buffer.length)) {
+            mRgb565Buffers.add(buffer);
+        }
+    }
+
+    /*
+     * Buffer for a copy of a whole preview frame, of exactly the given number of bytes.
+     */
+    public synchronized byte[] obtainFrame(int size) {
+        for (Iterator<byte[]> it = mFrameBuffers.iterator(); it.hasNext();) {
+            byte[] buffer = it.next();
+            if (buffer.length == size) {
+                it.remove();
+                mPooledBytes -= size;
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    public synchronized void recycleFrame(byte[] buffer) {
+        if (buffer != null && buffer.length == mFrameSize && reserve(buffer.length)) {
+            mFrameBuffers.add(buffer);
+        }
+    }
+
+    /*
+     * Mutable bitmap of the given size and config. Its content is undefined.
+     */
+    public synchronized Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+        for (Iterator<Bitmap> it = mBitmaps.iterator(); it.hasNext();) {
+            Bitmap bmp = it.next();
+            if (bmp.getWidth() == width && bmp.getHeight() == height && bmp.getConfig() == config) {
+                it.remove();
+                mPooledBytes -= bitmapBytes(bmp);
+                return bmp;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    public synchronized void recycleBitmap(Bitmap bmp) {
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+        if (bmp.isMutable() && isFrameSized(bmp) && reserveEvictingBuffers(bitmapBytes(bmp))) {
+            mBitmaps.add(bmp);
+        } else {
+            bmp.recycle();
+        }
+    }
+
+    /*
+     * Account for an object to be pooled. Returns false if it does not fit in the budget, or the pool is closed.
+     */
+    private boolean reserve(long bytes) {
+        if (mClosed || mPooledBytes + bytes > mBudgetBytes) {
+            return false;
+        }
+        mPooledBytes += bytes;
+        return true;
+    }
+
+    /*
+     * Same as reserve(), but evicts pooled buffers as long as the object does not fit.
+     */
+    private boolean reserveEvictingBuffers(long bytes) {
+        while (!mClosed && mPooledBytes + bytes > mBudgetBytes && bytes <= mBudgetBytes && evictBuffer()) {
+            // Until it fits or no buffer is left.
+        }
+        return reserve(bytes);
+    }
+
+    /*
+     * Drop one pooled buffer, the largest kind first. Returns false if there is none.
+     */
+    private boolean evictBuffer() {
+        if (!mRgbBuffers.isEmpty()) {
+            mPooledBytes -= 4L * mRgbBuffers.remove(mRgbBuffers.size() - 1).length;
+        } else if (!mRgb565Buffers.isEmpty()) {
+            mPooledBytes -= 2L * mRgb565Buffers.remove(mRgb565Buffers.size() - 1).length;
+        } else if (!mFrameBuffers.isEmpty()) {
+            mPooledBytes -= mFrameBuffers.remove(mFrameBuffers.size() - 1).length;
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * True if the bitmap has the size of the preview, upright or rotated.
+     */
+    private boolean isFrameSized(Bitmap bmp) {
+        return (bmp.getWidth() == mWidth && bmp.getHeight() == mHeight) || (bmp.getWidth() == mHeight && bmp.getHeight() == mWidth);
+    }
+
+    private static long bitmapBytes(Bitmap bmp) {
+        return (long) bmp.getRowBytes() * bmp.getHeight();
+    }
+}
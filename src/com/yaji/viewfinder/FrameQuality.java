@@ -0,0 +1,151 @@
+package com.yaji.viewfinder;
+
+import android.graphics.Rect;
+
+/*
+ * Cheap focus and motion score of preview frames, to skip frames that a decode would fail on anyway. The Y plane is sampled on a sparse
+ * grid of 2x2 cells. Sharpness is the steepness of the edges, the gradient between neighbouring cells weighted by itself, in the weaker
+ * of the horizontal and the vertical direction. It drops when the frame is out of focus or smeared. Motion is the mean absolute
+ * difference of the cells from the previous frame measured. Keeps the cells of the previous frame, so an instance must not be used from
+ * several threads at once.
+ */
+public class FrameQuality {
+    // Distance between sampled cells, in pixels.
+    private static final int STEP = 4;
+    // Frames with less sharpness are blurred, or show nothing with edges. In luminance levels, sensor noise alone gives about 5.
+    private static final int MIN_SHARPNESS = 28;
+    // Frames whose weaker direction has less than 1/ANISOTROPY of the gradient of the stronger one are smeared by motion.
+    private static final int ANISOTROPY = 2;
+    // Frames with more motion are taken while the camera or the subject is moving.
+    private static final int MAX_MOTION = 12;
+
+    private byte[] mCells;
+    private byte[] mPreviousCells;
+    private int mPreviousLeft;
+    private int mPreviousTop;
+    private int mPreviousCount;
+
+    private int mSharpness;
+    private boolean mSmeared;
+    private int mMotion = -1;
+    // Read by dump() on another thread.
+    private volatile int mRejectedCount;
+
+    /*
+     * Measure the given region of the Y plane, or the whole frame if region is null. Returns true if the frame is worth decoding.
+     */
+    public boolean measure(byte[] yuvData, YuvFormat format, Rect region) {
+        int left = 0;
+        int top = 0;
+        int right = format.getWidth();
+        int bottom = format.getHeight();
+        if (region != null && !region.isEmpty()) {
+            left = Math.max(left, region.left);
+            top = Math.max(top, region.top);
+            right = Math.min(right, region.right);
+            bottom = Math.min(bottom, region.bottom);
+        }
+        final int stride = format.getYStride();
+        // Cells and their right and lower neighbours must be inside.
+        final int columns = (right - left - 4) / STEP;
+        final int rows = (bottom - top - 4) / STEP;
+        if (columns <= 0 || rows <= 0) {
+            mSharpness = 0;
+            mSmeared = false;
+            mMotion = -1;
+            return true;
+        }
+        int count = columns * rows;
+        if (mCells == null || mCells.length < count) {
+            mCells = new byte[count];
+        }
+
+        long energyX = 0;
+        long energyY = 0;
+        long sumX = 0;
+        long sumY = 0;
+        int i = 0;
+        for (int row = 0; row < rows; row++) {
+            int p = (top + row * STEP) * stride + left;
+            for (int column = 0; column < columns; column++, p += STEP) {
+                int cell = cell(yuvData, p, stride);
+                int dx = cell(yuvData, p + 2, stride) - cell;
+                int dy = cell(yuvData, p + 2 * stride, stride) - cell;
+                energyX += dx * dx;
+                energyY += dy * dy;
+                sumX += Math.abs(dx);
+                sumY += Math.abs(dy);
+                mCells[i++] = (byte) cell;
+            }
+        }
+        // Gradient weighted by itself: flat areas count for nothing, so the size of the code in the frame does not matter.
+        int sharpnessX = (int) (energyX / Math.max(1, sumX));
+        int sharpnessY = (int) (energyY / Math.max(1, sumY));
+        // Motion smears edges across its direction only, while codes have as many edges in both. The weaker direction counts.
+        mSharpness = Math.min(sharpnessX, sharpnessY);
+        mSmeared = mSharpness * ANISOTROPY < Math.max(sharpnessX, sharpnessY);
+
+        // Motion can only be told against the same region of the previous frame.
+        if (mPreviousCells != null && mPreviousCount == count && mPreviousLeft == left && mPreviousTop == top) {
+            long diff = 0;
+            for (i = 0; i < count; i++) {
+                diff += Math.abs((mCells[i] & 0xff) - (mPreviousCells[i] & 0xff));
+            }
+            mMotion = (int) (diff / count);
+        } else {
+            mMotion = -1;
+        }
+        byte[] swap = mPreviousCells;
+        mPreviousCells = mCells;
+        mCells = swap;
+        mPreviousCount = count;
+        mPreviousLeft = left;
+        mPreviousTop = top;
+
+        boolean acceptable = isAcceptable();
+        if (!acceptable) {
+            mRejectedCount++;
+        }
+        return acceptable;
+    }
+
+    /*
+     * Average of the 2x2 pixels at p.
+     */
+    private static int cell(byte[] yuvData, int p, int stride) {
+        return ((yuvData[p] & 0xff) + (yuvData[p + 1] & 0xff) + (yuvData[p + stride] & 0xff) + (yuvData[p + stride + 1] & 0xff)) >> 2;
+    }
+
+    /*
+     * True if the last frame measured was sharp and still. Motion is not known for the first frame, only its sharpness counts then.
+     */
+    public boolean isAcceptable() {
+        return mSharpness >= MIN_SHARPNESS && !mSmeared && mMotion <= MAX_MOTION;
+    }
+
+    public int getSharpness() {
+        return mSharpness;
+    }
+
+    /*
+     * Motion of the last frame measured, -1 if unknown.
+     */
+    public int getMotion() {
+        return mMotion;
+    }
+
+    /*
+     * The number of frames rejected so far.
+     */
+    public int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /*
+     * Forget the previous frame, e.g. when a new series of frames starts.
+     */
+    public void reset() {
+        mPreviousCells = null;
+        mMotion = -1;
+    }
+}
@@ -0,0 +1,77 @@
+package com.yaji.viewfinder;
+
+/*
+ * Output transform applied while converting a preview frame: crop rectangle in frame coordinates, clockwise rotation of 0/90/180/270 degree,
+ * and horizontal mirror of the rotated result.
+ */
+public class FrameTransform {
+    private final int mCropLeft;
+    private final int mCropTop;
+    private final int mCropWidth;
+    private final int mCropHeight;
+    private final int mRotation;
+    private final boolean mMirror;
+
+    /*
+     * Constructor.
+     */
+    public FrameTransform(int cropLeft, int cropTop, int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Unsupported rotation: " + rotation);
+        }
+        if (cropLeft < 0 || cropTop < 0 || cropWidth <= 0 || cropHeight <= 0) {
+            throw new IllegalArgumentException("Invalid crop: " + cropLeft + "," + cropTop + " " + cropWidth + "x" + cropHeight);
+        }
+        mCropLeft = cropLeft;
+        mCropTop = cropTop;
+        mCropWidth = cropWidth;
+        mCropHeight = cropHeight;
+        mRotation = rotation;
+        mMirror = mirror;
+    }
+
+    /*
+     * Transform for the whole frame.
+     */
+    public FrameTransform(int width, int height, int rotation, boolean mirror) {
+        this(0, 0, width, height, rotation, mirror);
+    }
+
+    public int getCropLeft() {
+        return mCropLeft;
+    }
+
+    public int getCropTop() {
+        return mCropTop;
+    }
+
+    public int getCropWidth() {
+        return mCropWidth;
+    }
+
+    public int getCropHeight() {
+        return mCropHeight;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public boolean isMirror() {
+        return mMirror;
+    }
+
+    /*
+     * Width of the converted image.
+     */
+    public int getOutputWidth() {
+        return (mRotation == 90 || mRotation == 270) ? mCropHeight : mCropWidth;
+    }
+
+    /*
+     * Height of the converted image.
+     */
+    public int getOutputHeight() {
+        return (mRotation == 90 || mRotation == 270) ? mCropWidth : mCropHeight;
+    }
+}
@@ -1,13 +1,27 @@
 package com.yaji.viewfinder;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.media.MediaScannerConnection;
+import android.util.Log;
 
 public class ImageUtil {
+    private static final String LOG_TAG = "yaji";
+
+    // Frames smaller than this are converted on the calling thread, because dispatching to the pool costs more than it saves.
+    private static final int PARALLEL_MIN_PIXELS = 640 * 480;
+
+    // Converter backends. The reference is used until another backend has been verified against it.
+    private static final YuvConverter REFERENCE_CONVERTER = new ReferenceYuvConverter();
+    private static final long VERIFY_SEED = 0x59555621L;
+    private static volatile YuvConverter sConverter = REFERENCE_CONVERTER;
 
     /**
      * YUV420 to BMP
@@ -18,62 +32,386 @@ public class ImageUtil {
      * @param height
      */
     public static final void decodeYUV420SP(int[] rgb, byte[] yuv420sp, int width, int height) {
-        final int frameSize = width * height;
-
-        for (int j = 0, yp = 0; j < height; j++) {
-            int uvp = frameSize + (j >> 1) * width, u = 0, v = 0;
-            for (int i = 0; i < width; i++, yp++) {
-                int y = (0xff & ((int) yuv420sp[yp])) - 16;
-                if (y < 0)
-                    y = 0;
-                if ((i & 1) == 0) {
-                    v = (0xff & yuv420sp[uvp++]) - 128;
-                    u = (0xff & yuv420sp[uvp++]) - 128;
+        sConverter.decodeRows(rgb, yuv420sp, width, height, 0, height);
+    }
+
+    /**
+     * YUV420 to BMP, using the shared worker pool. The frame is split into stripes of rows, each stripe starting at an even row so that no
+     * chroma row is shared between two stripes. The result is identical to decodeYUV420SP(). Small frames are converted on the calling thread.
+     * 
+     * @param rgb
+     * @param yuv420sp
+     * @param width
+     * @param height
+     */
+    public static final void decodeYUV420SPParallel(final int[] rgb, final byte[] yuv420sp, final int width, final int height) {
+        final YuvConverter converter = sConverter;
+        runInStripes(width, height, new RowTask() {
+            public void run(int startRow, int endRow) {
+                converter.decodeRows(rgb, yuv420sp, width, height, startRow, endRow);
+            }
+        });
+    }
+
+    /*
+     * Task converting a range of rows [startRow, endRow).
+     */
+    private interface RowTask {
+        void run(int startRow, int endRow);
+    }
+
+    /*
+     * Run the task over all rows, split into stripes on the shared worker pool. Each stripe starts at an even row so that no chroma row is
+     * shared between two stripes. Small frames are run on the calling thread.
+     */
+    private static void runInStripes(int width, int height, final RowTask task) {
+        final int threads = WorkerPool.getThreadCount();
+        if (threads < 2 || width * height < PARALLEL_MIN_PIXELS) {
+            task.run(0, height);
+            return;
+        }
+
+        // Rows per stripe, rounded up to a chroma row pair.
+        int stripe = (height + threads - 1) / threads;
+        stripe = (stripe + 1) & ~1;
+
+        // Run all stripes but the last one on the pool, and the last one on this thread.
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        int start = 0;
+        for (; start + stripe < height; start += stripe) {
+            final int startRow = start;
+            final int endRow = start + stripe;
+            try {
+                futures.add(WorkerPool.get().submit(new Runnable() {
+                    public void run() {
+                        task.run(startRow, endRow);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "runInStripes(), pool rejected a stripe, convert it here", e);
+                futures.add(null);
+                task.run(startRow, endRow);
+            }
+        }
+        task.run(start, height);
+
+        // Wait for every stripe, even if interrupted, so that the caller always gets a complete frame and no stripe is still writing
+        // into it. A stripe that failed on the pool is converted again here, alone.
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            while (future != null) {
+                try {
+                    future.get();
+                    future = null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.w(LOG_TAG, "runInStripes(), stripe failed, convert it here", e);
+                    task.run(i * stripe, (i + 1) * stripe);
+                    future = null;
                 }
+            }
+        }
+        if (interrupted) {
+            // Keep the interrupt for the caller.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Any supported 4:2:0 layout to BMP, using the shared worker pool. NV21 goes through the selected YuvConverter backend.
+     * 
+     * @param rgb
+     * @param data
+     * @param format
+     */
+    public static final void decodeYUV(final int[] rgb, final byte[] data, final YuvFormat format) {
+        final int width = format.getWidth();
+        final int height = format.getHeight();
+        if (format.isPackedNV21()) {
+            decodeYUV420SPParallel(rgb, data, width, height);
+            return;
+        }
 
-                int y1192 = 1192 * y;
-                int r = (y1192 + 1634 * v);
-                int g = (y1192 - 833 * v - 400 * u);
-                int b = (y1192 + 2066 * u);
-
-                if (r < 0)
-                    r = 0;
-                else if (r > 262143)
-                    r = 262143;
-                if (g < 0)
-                    g = 0;
-                else if (g > 262143)
-                    g = 262143;
-                if (b < 0)
-                    b = 0;
-                else if (b > 262143)
-                    b = 262143;
-
-                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+        final int yStride = format.getYStride();
+        final int uvStride = format.getChromaRowStride();
+        final int uvPixelStride = format.getChromaPixelStride();
+        final int uOffset = format.getUOffset();
+        final int vOffset = format.getVOffset();
+        runInStripes(width, height, new RowTask() {
+            public void run(int startRow, int endRow) {
+                for (int j = startRow, out = startRow * width; j < endRow; j++) {
+                    final int yRow = j * yStride;
+                    final int uvRow = (j >> 1) * uvStride;
+                    for (int i = 0; i < width; i++, out++) {
+                        final int uvp = uvRow + (i >> 1) * uvPixelStride;
+                        rgb[out] = TableYuvConverter.toArgb(0xff & data[yRow + i], 0xff & data[uOffset + uvp], 0xff & data[vOffset + uvp]);
+                    }
+                }
             }
+        });
+    }
+
+    /**
+     * YUV420 to BMP, cropping, rotating and mirroring in the same pass. Source rows are read once in order, and each pixel is written once
+     * at its final position. Large crops are converted on the shared worker pool. rgb must hold
+     * transform.getOutputWidth() * transform.getOutputHeight() pixels.
+     * 
+     * @param rgb
+     * @param yuv420sp
+     * @param width
+     * @param height
+     * @param transform
+     */
+    public static final void decodeYUV420SP(int[] rgb, byte[] yuv420sp, int width, int height, FrameTransform transform) {
+        decodeYUV(rgb, yuv420sp, YuvFormat.create(YuvFormat.NV21, width, height), transform);
+    }
+
+    /*
+     * Same as decodeYUV420SP() with FrameTransform, for any supported layout.
+     */
+    public static final void decodeYUV(int[] rgb, byte[] data, YuvFormat format, FrameTransform transform) {
+        decodeTransformed(rgb, null, data, format, transform);
+    }
+
+    /*
+     * Same as decodeYUV() with FrameTransform, into packed RGB565: half the memory of ARGB. rgb565 can be given to
+     * Bitmap.copyPixelsFromBuffer() of an RGB_565 bitmap through ShortBuffer.wrap(). Each channel is the one of the ARGB conversion with
+     * its low bits dropped.
+     */
+    public static final void decodeYUVToRGB565(short[] rgb565, byte[] data, YuvFormat format, FrameTransform transform) {
+        decodeTransformed(null, rgb565, data, format, transform);
+    }
+
+    /*
+     * Transforming conversion, either to ARGB (argb != null) or to RGB565.
+     */
+    private static void decodeTransformed(final int[] argb, final short[] rgb565, final byte[] data, YuvFormat format,
+            FrameTransform transform) {
+        final int left = transform.getCropLeft();
+        final int top = transform.getCropTop();
+        final int cropWidth = transform.getCropWidth();
+        final int cropHeight = transform.getCropHeight();
+        if (left + cropWidth > format.getWidth() || top + cropHeight > format.getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle is outside the frame");
+        }
+        final int yStride = format.getYStride();
+        final int uvStride = format.getChromaRowStride();
+        final int uvPixelStride = format.getChromaPixelStride();
+        final int uOffset = format.getUOffset();
+        final int vOffset = format.getVOffset();
+        final int outWidth = transform.getOutputWidth();
+
+        // Output position of the first pixel of the crop, and how it moves along a source row (dx) and down a source column (dy).
+        int ox0, oy0, dxX, dxY, dyX, dyY;
+        switch (transform.getRotation()) {
+        case 90:
+            ox0 = cropHeight - 1;
+            oy0 = 0;
+            dxX = 0;
+            dxY = 1;
+            dyX = -1;
+            dyY = 0;
+            break;
+        case 180:
+            ox0 = cropWidth - 1;
+            oy0 = cropHeight - 1;
+            dxX = -1;
+            dxY = 0;
+            dyX = 0;
+            dyY = -1;
+            break;
+        case 270:
+            ox0 = 0;
+            oy0 = cropWidth - 1;
+            dxX = 0;
+            dxY = -1;
+            dyX = 1;
+            dyY = 0;
+            break;
+        default:
+            ox0 = 0;
+            oy0 = 0;
+            dxX = 1;
+            dxY = 0;
+            dyX = 0;
+            dyY = 1;
+            break;
+        }
+        if (transform.isMirror()) {
+            ox0 = outWidth - 1 - ox0;
+            dxX = -dxX;
+            dyX = -dyX;
         }
+        final int stepX = dxY * outWidth + dxX;
+        final int stepY = dyY * outWidth + dyX;
+        final int origin = oy0 * outWidth + ox0;
+
+        // Stripes are in crop rows. Starting them at even rows is not needed here, every row looks up its own chroma.
+        runInStripes(cropWidth, cropHeight, new RowTask() {
+            public void run(int startRow, int endRow) {
+                for (int j = startRow, rowStart = origin + startRow * stepY; j < endRow; j++, rowStart += stepY) {
+                    final int sy = top + j;
+                    final int yRow = sy * yStride;
+                    final int uvRow = (sy >> 1) * uvStride;
+                    // Two loops rather than a test on every pixel.
+                    if (argb != null) {
+                        for (int i = 0, out = rowStart; i < cropWidth; i++, out += stepX) {
+                            final int sx = left + i;
+                            final int uvp = uvRow + (sx >> 1) * uvPixelStride;
+                            argb[out] = TableYuvConverter.toArgb(0xff & data[yRow + sx], 0xff & data[uOffset + uvp],
+                                    0xff & data[vOffset + uvp]);
+                        }
+                    } else {
+                        for (int i = 0, out = rowStart; i < cropWidth; i++, out += stepX) {
+                            final int sx = left + i;
+                            final int uvp = uvRow + (sx >> 1) * uvPixelStride;
+                            rgb565[out] = TableYuvConverter.toRgb565(0xff & data[yRow + sx], 0xff & data[uOffset + uvp],
+                                    0xff & data[vOffset + uvp]);
+                        }
+                    }
+                }
+            }
+        });
     }
 
     /*
-     * Save bitmap to image file.
-     */
-    public static void saveBitmapAsFile(String filepath, Bitmap bitmap, Bitmap.CompressFormat format) {
-        try {
-            // bitmap to byte array
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmap.compress(format, 100, baos);
-            baos.flush();
-            byte[] byteArray = baos.toByteArray();
-            baos.close();
-
-            // byte array to file
-            FileOutputStream out = new FileOutputStream(filepath);
-            out.write(byteArray);
-            out.flush();
-            out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+     * Downscale a window of the Y plane by factor (2, 4 or 8), each output pixel being the average of the factor x factor pixels it
+     * covers, rounded to nearest. Output rows are width / factor pixels with no padding; the pixels of the window past the last whole
+     * block are left out. out must hold (width / factor) * (height / factor) bytes. Only the luma is downscaled: its consumer, the
+     * coarse stage of QR code detection, needs nothing else.
+     */
+    public static void downscaleLuma(byte[] data, int stride, int left, int top, int width, int height, int factor, byte[] out) {
+        if (factor != 2 && factor != 4 && factor != 8) {
+            throw new IllegalArgumentException("Unsupported factor: " + factor);
         }
+        final int shift = (factor == 2) ? 2 : (factor == 4) ? 4 : 6;
+        final int round = 1 << (shift - 1);
+        final int outWidth = width / factor;
+        final int outHeight = height / factor;
+        int[] sums = new int[outWidth];
+        for (int oy = 0; oy < outHeight; oy++) {
+            Arrays.fill(sums, 0);
+            int rowStart = (top + oy * factor) * stride + left;
+            for (int r = 0; r < factor; r++) {
+                int p = rowStart + r * stride;
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int sum = 0;
+                    for (int c = 0; c < factor; c++) {
+                        sum += data[p++] & 0xff;
+                    }
+                    sums[ox] += sum;
+                }
+            }
+            for (int ox = 0, o = oy * outWidth; ox < outWidth; ox++, o++) {
+                out[o] = (byte) ((sums[ox] + round) >> shift);
+            }
+        }
+    }
+
+    /*
+     * Available converter backends. The first one is the reference that the others are checked against.
+     */
+    public static YuvConverter[] getYuvConverters() {
+        return new YuvConverter[] { REFERENCE_CONVERTER, new TableYuvConverter() };
+    }
+
+    /*
+     * Find converter backend by name. Returns null if not found.
+     */
+    public static YuvConverter findYuvConverter(String name) {
+        for (YuvConverter converter : getYuvConverters()) {
+            if (converter.getName().equals(name)) {
+                return converter;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Converter backend currently used by decodeYUV420SP() and decodeYUV420SPParallel().
+     */
+    public static YuvConverter getYuvConverter() {
+        return sConverter;
+    }
+
+    /*
+     * Change converter backend. The backend must have passed verifyYuvConverter(), otherwise the reference is kept.
+     */
+    public static boolean setYuvConverter(YuvConverter converter) {
+        if (converter != null && verifyYuvConverter(converter)) {
+            sConverter = converter;
+            Log.d(LOG_TAG, "ImageUtil.setYuvConverter(), " + converter.getName());
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Self check: convert random frames with the given backend and with the reference, and compare the result pixel by pixel.
+     */
+    public static boolean verifyYuvConverter(YuvConverter converter) {
+        if (converter == REFERENCE_CONVERTER) {
+            return true;
+        }
+        // Include odd width and height.
+        final int[][] sizes = { { 64, 48 }, { 33, 17 }, { 176, 144 } };
+        final int framesPerSize = 4;
+        Random random = new Random(VERIFY_SEED);
+
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = new byte[width * height + ((height + 1) / 2) * width + 1];
+            int[] expected = new int[width * height];
+            int[] actual = new int[width * height];
+            for (int n = 0; n < framesPerSize; n++) {
+                random.nextBytes(yuv);
+                REFERENCE_CONVERTER.decodeRows(expected, yuv, width, height, 0, height);
+                converter.decodeRows(actual, yuv, width, height, 0, height);
+                if (!Arrays.equals(expected, actual)) {
+                    Log.w(LOG_TAG, "ImageUtil.verifyYuvConverter(), mismatch: " + converter.getName() + ", size:" + width + "x" + height);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Verify every backend, measure it on a VGA frame, and use the fastest one. Takes some tens of milliseconds, so call it off the UI thread.
+     */
+    public static YuvConverter selectFastestYuvConverter() {
+        final int width = 640;
+        final int height = 480;
+        final int rounds = 3;
+        byte[] yuv = new byte[width * height * 3 / 2];
+        new Random(VERIFY_SEED).nextBytes(yuv);
+        int[] rgb = new int[width * height];
+
+        YuvConverter fastest = REFERENCE_CONVERTER;
+        long fastestTime = Long.MAX_VALUE;
+        for (YuvConverter converter : getYuvConverters()) {
+            if (!verifyYuvConverter(converter)) {
+                continue;
+            }
+            // The first round warms up JIT, so take the best one.
+            long best = Long.MAX_VALUE;
+            for (int n = 0; n < rounds; n++) {
+                long start = System.nanoTime();
+                converter.decodeRows(rgb, yuv, width, height, 0, height);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            Log.d(LOG_TAG, "ImageUtil.selectFastestYuvConverter(), " + converter.getName() + ": " + best / 1000 + "us");
+            if (best < fastestTime) {
+                fastestTime = best;
+                fastest = converter;
+            }
+        }
+
+        sConverter = fastest;
+        return fastest;
     }
 
     /*
@@ -0,0 +1,174 @@
+package com.yaji.viewfinder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.media.ExifInterface;
+import android.util.Log;
+
+/*
+ * Writes JPEG files atomically. The image is compressed (or copied) straight into a buffered stream on the channel of a hidden temporary
+ * file next to the target, EXIF attributes are applied to the temporary file, and it is renamed into place. A crash in the middle leaves
+ * at most a temporary file, never a truncated picture in the gallery. Temporary files left so are deleted before the first write into
+ * their folder. How much is synced to the storage before the rename depends on the
+ * durability policy. The rename itself is never synced, Java cannot sync a directory: after a power loss right after saving, the picture
+ * may be missing, but it is never truncated.
+ */
+public class JpegWriter {
+    private static final String LOG_TAG = "yaji";
+
+    // Leave it to the OS when to write the data. Fastest, a power loss may lose the last pictures.
+    public static final int DURABILITY_NONE = 0;
+    // Sync the file content before the rename.
+    public static final int DURABILITY_DATA = 1;
+    // Sync the file content and its metadata before the rename. Not the directory entry of the rename.
+    public static final int DURABILITY_FULL = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUALITY = 100;
+
+    private volatile int mDurability;
+    // Folders whose stale temporary files have been deleted.
+    private final Set<String> mCleanedDirs = new HashSet<String>();
+
+    /*
+     * Constructor. durability: one of DURABILITY_*.
+     */
+    public JpegWriter(int durability) {
+        mDurability = durability;
+    }
+
+    /*
+     * Change the durability policy, for the next pictures written.
+     */
+    public void setDurability(int durability) {
+        mDurability = durability;
+    }
+
+    /*
+     * Compress the bitmap into the file. exif: attributes to set, or null. Returns false on failure, nothing is left at the path then.
+     */
+    public boolean write(String path, Bitmap bitmap, Map<String, String> exif) {
+        return write(path, bitmap, null, exif);
+    }
+
+    /*
+     * Write already compressed JPEG data, e.g. from Camera:takePicture(), into the file. Returns false on failure.
+     */
+    public boolean write(String path, byte[] jpeg, Map<String, String> exif) {
+        return write(path, null, jpeg, exif);
+    }
+
+    private boolean write(String path, Bitmap bitmap, byte[] jpeg, Map<String, String> exif) {
+        File file = new File(path);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.w(LOG_TAG, "JpegWriter, failed to create " + dir);
+            return false;
+        }
+        if (dir != null) {
+            deleteStaleTemporaries(dir);
+        }
+        // Same folder, so that the rename stays in one file system. Hidden, so that the media scanner ignores it.
+        File tmp = new File(dir, "." + file.getName() + ".tmp");
+        int durability = mDurability;
+        boolean succeeded = false;
+        try {
+            writeContent(tmp, bitmap, jpeg, (exif == null) ? durability : DURABILITY_NONE);
+            if (exif != null) {
+                // ExifInterface rewrites the file, so it is synced afterwards.
+                ExifInterface ei = new ExifInterface(tmp.getPath());
+                for (Map.Entry<String, String> entry : exif.entrySet()) {
+                    ei.setAttribute(entry.getKey(), entry.getValue());
+                }
+                ei.saveAttributes();
+                sync(tmp, durability);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename to " + file);
+            }
+            succeeded = true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "JpegWriter.write() failed, " + path, e);
+        } finally {
+            if (!succeeded && tmp.exists() && !tmp.delete()) {
+                Log.w(LOG_TAG, "JpegWriter, failed to delete " + tmp);
+            }
+        }
+        return succeeded;
+    }
+
+    /*
+     * Delete the temporary files left in the folder by a crash, once per folder. Under the lock, so that none being written is deleted.
+     */
+    private void deleteStaleTemporaries(File dir) {
+        synchronized (mCleanedDirs) {
+            if (!mCleanedDirs.add(dir.getPath())) {
+                return;
+            }
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(".") && name.endsWith(".tmp") && file.isFile()) {
+                    Log.d(LOG_TAG, "JpegWriter, deleting stale " + file);
+                    if (!file.delete()) {
+                        Log.w(LOG_TAG, "JpegWriter, failed to delete " + file);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Write the image into the file, and sync it according to the durability policy before closing.
+     */
+    private static void writeContent(File tmp, Bitmap bitmap, byte[] jpeg, int durability) throws IOException {
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = fos.getChannel();
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            if (bitmap != null) {
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out)) {
+                    throw new IOException("Failed to compress");
+                }
+            } else {
+                out.write(jpeg);
+            }
+            out.flush();
+            force(channel, durability);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void sync(File file, int durability) throws IOException {
+        if (durability == DURABILITY_NONE) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            force(raf.getChannel(), durability);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void force(FileChannel channel, int durability) throws IOException {
+        if (durability != DURABILITY_NONE) {
+            channel.force(durability == DURABILITY_FULL);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.yaji.viewfinder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.zxing.BarcodeFormat;
+
+/*
+ * Index of the codes in the pictures of a folder, so that codes captured in past pictures can be searched without decoding the pictures
+ * again. Pictures are decoded in parallel on threads of their own at background priority, so that the shared worker pool stays free for
+ * the preview, downsampled on load and into reused bitmaps. The index is kept in a compact binary file keyed by path, size and
+ * modification time, so that only new or changed pictures are decoded on the next scan. Pictures that cannot be decoded are recorded
+ * too, without codes, so that they are not tried again until they change. The index records the profile it was built with, a scan with
+ * another profile decodes every picture again. Thread safe.
+ */
+public class PictureIndexer {
+    private static final String LOG_TAG = "yaji";
+
+    private static final int INDEX_MAGIC = 0x594a4958; // "YJIX"
+    private static final int INDEX_VERSION = 2;
+
+    // Name of the index file, in the private files of the application.
+    public static final String INDEX_FILE_NAME = "picture_index";
+
+    // Pictures are downsampled until their longer side is at most this.
+    private static final int MAX_SIDE = 1280;
+
+    /*
+     * A code found in a picture.
+     */
+    public static class Code {
+        private final String mPath;
+        private final String mText;
+        private final BarcodeFormat mFormat;
+
+        public Code(String path, String text, BarcodeFormat format) {
+            mPath = path;
+            mText = text;
+            mFormat = format;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public BarcodeFormat getFormat() {
+            return mFormat;
+        }
+    }
+
+    /*
+     * A recognizer and a reused bitmap, used by one decode at a time.
+     */
+    private static class Decoder {
+        final QRRecognizer mRecognizer;
+        final Bitmap[] mReusable = new Bitmap[1];
+
+        Decoder(DecodeProfile profile) {
+            mRecognizer = new QRRecognizer(profile);
+            // Pictures would distort the statistics of the preview pipeline.
+            mRecognizer.setRecordStats(false);
+        }
+    }
+
+    /*
+     * A picture as of its last decode.
+     */
+    private static class Entry {
+        final long mSize;
+        final long mModified;
+        final List<Code> mCodes;
+
+        Entry(long size, long modified, List<Code> codes) {
+            mSize = size;
+            mModified = modified;
+            mCodes = codes;
+        }
+    }
+
+    private final File mDir;
+    private final File mIndexFile;
+    private volatile DecodeProfile mProfile;
+    // Name of the profile the entries were decoded with.
+    private String mIndexedProfile;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mLoaded;
+    private boolean mRunning;
+    private boolean mRescan;
+    private volatile boolean mStopped;
+
+    /*
+     * Constructor. dir: folder of the pictures. indexFile: where the index is kept.
+     */
+    public PictureIndexer(File dir, File indexFile, DecodeProfile profile) {
+        mDir = dir;
+        mIndexFile = indexFile;
+        mProfile = profile;
+    }
+
+    /*
+     * Set the profile pictures are decoded with. Taken by the next scan. Returns true if it differs from the previous one.
+     */
+    public boolean setProfile(DecodeProfile profile) {
+        boolean changed = !profile.getName().equals(mProfile.getName());
+        mProfile = profile;
+        return changed;
+    }
+
+    /*
+     * Bring the index up to date in background. If a scan is running, another one follows it.
+     */
+    public synchronized void start() {
+        mStopped = false;
+        if (mRunning) {
+            mRescan = true;
+            return;
+        }
+        mRunning = true;
+        // The scan waits for its tasks on the worker pool, so it runs on a thread of its own.
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean again;
+                do {
+                    scan();
+                    synchronized (PictureIndexer.this) {
+                        again = mRescan && !mStopped;
+                        mRescan = false;
+                        if (!again) {
+                            mRunning = false;
+                        }
+                    }
+                } while (again);
+            }
+        }, "yaji-indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Stop the running scan after the pictures being decoded. What has been indexed so far is saved.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /*
+     * Codes whose text contains the query, ignoring case. Newest pictures first.
+     */
+    public List<Code> search(String query) {
+        String lowerQuery = query.toLowerCase(Locale.US);
+        List<Code> codes = new ArrayList<Code>();
+        synchronized (this) {
+            loadIfNeeded();
+            List<String> paths = new ArrayList<String>(mEntries.keySet());
+            // Picture file names are their date.
+            Collections.sort(paths, Collections.reverseOrder());
+            for (String path : paths) {
+                for (Code code : mEntries.get(path).mCodes) {
+                    if (code.getText().toLowerCase(Locale.US).contains(lowerQuery)) {
+                        codes.add(code);
+                    }
+                }
+            }
+        }
+        return codes;
+    }
+
+    /*
+     * The number of pictures indexed, and of the codes in them.
+     */
+    public synchronized int getPictureCount() {
+        return mEntries.size();
+    }
+
+    public synchronized int getCodeCount() {
+        int count = 0;
+        for (Entry entry : mEntries.values()) {
+            count += entry.mCodes.size();
+        }
+        return count;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /*
+     * Decode new and changed pictures, and drop removed ones.
+     */
+    private void scan() {
+        // The profile as of the start of the scan, for every picture of it.
+        final DecodeProfile profile = mProfile;
+        final List<File> pending = new ArrayList<File>();
+        synchronized (this) {
+            loadIfNeeded();
+            if (!profile.getName().equals(mIndexedProfile)) {
+                // Codes of other formats may be found now, or no longer.
+                mEntries.clear();
+                mIndexedProfile = profile.getName();
+            }
+            File[] files = mDir.listFiles();
+            Map<String, Entry> current = new HashMap<String, Entry>();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName().toLowerCase(Locale.US);
+                    if (!file.isFile() || !(name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+                        continue;
+                    }
+                    Entry entry = mEntries.get(file.getPath());
+                    if (entry != null && entry.mSize == file.length() && entry.mModified == file.lastModified()) {
+                        current.put(file.getPath(), entry);
+                    } else {
+                        pending.add(file);
+                    }
+                }
+            }
+            mEntries.clear();
+            mEntries.putAll(current);
+        }
+        Log.d(LOG_TAG, "PictureIndexer.scan(), pending:" + pending.size());
+
+        // Leave a core for the preview. One task per picture, checking for stop() before each.
+        int threads = Math.min(pending.size(), Math.max(1, WorkerPool.getThreadCount() - 1));
+        final List<Decoder> idle = new ArrayList<Decoder>();
+        if (threads > 0) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "yaji-indexer-" + mCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            List<Future<?>> futures = new ArrayList<Future<?>>(pending.size());
+            try {
+                for (final File file : pending) {
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            if (mStopped) {
+                                return;
+                            }
+                            Decoder decoder = obtainDecoder(idle, profile);
+                            try {
+                                indexPicture(file, decoder.mRecognizer, decoder.mReusable);
+                            } finally {
+                                synchronized (idle) {
+                                    idle.add(decoder);
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        Log.w(LOG_TAG, "PictureIndexer.scan() failed", e);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+        for (Decoder decoder : idle) {
+            if (decoder.mReusable[0] != null) {
+                decoder.mReusable[0].recycle();
+            }
+        }
+        save();
+    }
+
+    private static Decoder obtainDecoder(List<Decoder> idle, DecodeProfile profile) {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return idle.remove(idle.size() - 1);
+            }
+        }
+        return new Decoder(profile);
+    }
+
+    private void indexPicture(File file, QRRecognizer recognizer, Bitmap[] reusable) {
+        // Size and time before decoding, a picture being written is decoded again next time.
+        long size = file.length();
+        long modified = file.lastModified();
+        Bitmap bitmap = decodePicture(file.getPath(), reusable);
+        List<Code> codes = new ArrayList<Code>();
+        if (bitmap == null) {
+            // Broken or not an image. Recorded without codes, not to be decoded on every scan.
+            Log.d(LOG_TAG, "PictureIndexer, failed to decode " + file.getPath());
+        } else {
+            for (QRResult result : recognizer.recognizeMultiple(new RGBLuminanceSource(bitmap))) {
+                codes.add(new Code(file.getPath(), result.getText(), result.getFormat()));
+            }
+        }
+        synchronized (this) {
+            mEntries.put(file.getPath(), new Entry(size, modified, codes));
+        }
+    }
+
+    /*
+     * Decode the picture downsampled to MAX_SIDE, into the reusable bitmap if it fits. The decoded bitmap becomes the reusable one.
+     */
+    private static Bitmap decodePicture(String path, Bitmap[] reusable) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_SIDE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // Before KitKat a bitmap can only be reused for an image of the same size, not downsampled.
+        final int SDK_HONEYCOMB = 11; // Build.VERSION_CODES.HONEYCOMB
+        final int SDK_KITKAT = 19; // Build.VERSION_CODES.KITKAT
+        Bitmap candidate = reusable[0];
+        if (Build.VERSION.SDK_INT >= SDK_HONEYCOMB) {
+            // Only mutable bitmaps can be reused.
+            options.inMutable = true;
+            if (candidate != null
+                    && (Build.VERSION.SDK_INT >= SDK_KITKAT || (sampleSize == 1 && candidate.getWidth() == options.outWidth && candidate
+                            .getHeight() == options.outHeight))) {
+                options.inBitmap = candidate;
+            }
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The bitmap could not be reused after all.
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (bitmap != null && bitmap != candidate) {
+            if (candidate != null) {
+                candidate.recycle();
+            }
+            reusable[0] = bitmap;
+        }
+        return bitmap;
+    }
+
+    /*
+     * Read the index file, once.
+     */
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mIndexFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                Log.w(LOG_TAG, "PictureIndexer, unknown index file, ignored");
+                return;
+            }
+            mIndexedProfile = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int codeCount = in.readShort();
+                List<Code> codes = new ArrayList<Code>(codeCount);
+                for (int j = 0; j < codeCount; j++) {
+                    BarcodeFormat format = BarcodeFormat.valueOf(in.readUTF());
+                    codes.add(new Code(path, in.readUTF(), format));
+                }
+                mEntries.put(path, new Entry(size, modified, codes));
+            }
+        } catch (Exception e) {
+            // Broken index, the pictures are decoded again.
+            Log.w(LOG_TAG, "PictureIndexer, failed to load the index", e);
+            mEntries.clear();
+            mIndexedProfile = null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "PictureIndexer, close failed", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Write the index into a temporary file and rename it, so that a crash never leaves a broken index.
+     */
+    private synchronized void save() {
+        File tmp = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(mIndexedProfile != null ? mIndexedProfile : "");
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().mSize);
+                out.writeLong(entry.getValue().mModified);
+                out.writeShort(entry.getValue().mCodes.size());
+                for (Code code : entry.getValue().mCodes) {
+                    out.writeUTF(code.getFormat().name());
+                    out.writeUTF(code.getText());
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mIndexFile)) {
+                Log.w(LOG_TAG, "PictureIndexer, failed to rename the index");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "PictureIndexer, failed to save the index", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "PictureIndexer, close failed", e);
+                }
+            }
+        }
+    }
+}
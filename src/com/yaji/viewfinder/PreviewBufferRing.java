@@ -0,0 +1,262 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.hardware.Camera;
+import android.hardware.Camera.PreviewCallback;
+import android.util.Log;
+
+/*
+ * Ring of preview callback buffers, used through Camera:addCallbackBuffer() and Camera:setPreviewCallbackWithBuffer() so that delivering a
+ * frame allocates nothing. The preview callback is installed only while somebody wants frames.
+ *
+ * A buffer given to a consumer goes back to the camera as soon as the consumer returns, unless the consumer calls checkout() to keep it.
+ * Checked out buffers must be given back with recycle(). On devices without these methods it falls back to the plain preview callbacks.
+ */
+public class PreviewBufferRing {
+    private static final String LOG_TAG = "yaji";
+
+    /*
+     * Consumer of every preview frame.
+     */
+    public interface FrameListener {
+        void onPreviewFrame(byte[] data, PreviewBufferRing ring);
+    }
+
+    private final CameraHideMethods mMethods;
+    private final int mCount;
+
+    private Camera mCamera;
+    private YuvFormat mFormat;
+    private int mBufferSize;
+    private boolean mInstalled;
+    // All buffers of the ring, buffers owned by us (not queued to the camera), buffers being delivered to consumers right now, and buffers
+    // held by consumers.
+    private final List<byte[]> mBuffers = new ArrayList<byte[]>();
+    private final List<byte[]> mFree = new ArrayList<byte[]>();
+    private final List<byte[]> mDispatching = new ArrayList<byte[]>();
+    private final List<byte[]> mCheckedOut = new ArrayList<byte[]>();
+
+    private FrameListener mListener;
+    private final List<PreviewCallback> mOneShots = new ArrayList<PreviewCallback>();
+
+    private final PreviewCallback mCallback = new PreviewCallback() {
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            dispatch(data, camera);
+        }
+    };
+
+    /*
+     * Constructor.
+     */
+    public PreviewBufferRing(CameraHideMethods methods, int count) {
+        mMethods = methods;
+        mCount = count;
+    }
+
+    /*
+     * True if this device has callback buffers. Otherwise every frame is a new byte[].
+     */
+    public boolean isSupported() {
+        return mMethods.hasCallbackBuffer();
+    }
+
+    /*
+     * Attach to the camera whose preview has been started with frames of the given format.
+     */
+    public synchronized void start(Camera camera, YuvFormat format) {
+        if (mInstalled) {
+            uninstall();
+        }
+        mCamera = camera;
+        mFormat = format;
+
+        // Buffers of the previous preview size are dropped. Checked out ones are dropped when they are recycled.
+        if (format.getFrameSize() != mBufferSize) {
+            mBuffers.clear();
+            mFree.clear();
+            mBufferSize = format.getFrameSize();
+        }
+        Log.d(LOG_TAG, "PreviewBufferRing.start(), bufferSize:" + mBufferSize + ", supported:" + isSupported());
+
+        if (hasDemand()) {
+            install();
+        }
+    }
+
+    /*
+     * Format of the frames being delivered.
+     */
+    public synchronized YuvFormat getFormat() {
+        return mFormat;
+    }
+
+    /*
+     * Detach from the camera. Buffers are kept for the next start().
+     */
+    public synchronized void stop() {
+        if (mInstalled) {
+            uninstall();
+        }
+        mCamera = null;
+    }
+
+    /*
+     * Set the consumer of every frame, or null to stop delivering them.
+     */
+    public synchronized void setFrameListener(FrameListener listener) {
+        mListener = listener;
+        updateInstallation();
+    }
+
+    /*
+     * Deliver the next frame to the callback once.
+     */
+    public synchronized void requestOneShot(PreviewCallback callback) {
+        mOneShots.add(callback);
+        updateInstallation();
+    }
+
+    /*
+     * Keep the buffer after returning from the callback it was delivered to.
+     */
+    public synchronized void checkout(byte[] data) {
+        if (indexOf(mBuffers, data) >= 0 && indexOf(mCheckedOut, data) < 0) {
+            mCheckedOut.add(data);
+        }
+    }
+
+    /*
+     * Give back a buffer taken with checkout().
+     */
+    public synchronized void recycle(byte[] data) {
+        int index = indexOf(mCheckedOut, data);
+        if (index >= 0) {
+            mCheckedOut.remove(index);
+            release(data);
+        }
+    }
+
+    /*
+     * The number of buffers queued to the camera or free, i.e. not held by consumers.
+     */
+    public synchronized int getAvailableCount() {
+        return mBuffers.size() - mCheckedOut.size();
+    }
+
+    private void dispatch(byte[] data, Camera camera) {
+        FrameListener listener;
+        List<PreviewCallback> oneShots;
+        synchronized (this) {
+            listener = mListener;
+            oneShots = new ArrayList<PreviewCallback>(mOneShots);
+            mOneShots.clear();
+            mDispatching.add(data);
+        }
+
+        // Call consumers without holding the lock, they may check out the buffer or stop the camera.
+        for (PreviewCallback callback : oneShots) {
+            callback.onPreviewFrame(data, camera);
+        }
+        if (listener != null) {
+            listener.onPreviewFrame(data, this);
+        }
+
+        synchronized (this) {
+            mDispatching.remove(indexOf(mDispatching, data));
+            if (indexOf(mCheckedOut, data) < 0) {
+                release(data);
+            }
+            updateInstallation();
+        }
+    }
+
+    /*
+     * Return a buffer of the ring either to the camera or to the free list. Buffers of an old size are dropped.
+     */
+    private void release(byte[] data) {
+        if (indexOf(mBuffers, data) < 0) {
+            return;
+        }
+        if (mInstalled && isSupported()) {
+            mMethods.addCallbackBuffer(mCamera, data);
+        } else if (indexOf(mFree, data) < 0) {
+            mFree.add(data);
+        }
+    }
+
+    private boolean hasDemand() {
+        return mListener != null || !mOneShots.isEmpty();
+    }
+
+    private void updateInstallation() {
+        if (mCamera == null) {
+            return;
+        }
+        if (hasDemand()) {
+            if (!mInstalled) {
+                install();
+            } else if (!isSupported()) {
+                if (mListener != null) {
+                    // Fallback: a one-shot callback may have been installed, which is not enough for a listener.
+                    mCamera.setPreviewCallback(mCallback);
+                } else {
+                    // Fallback: the one-shot callback is gone once it has fired, a one-shot requested from it needs a new one.
+                    mCamera.setOneShotPreviewCallback(mCallback);
+                }
+            }
+        } else if (mInstalled) {
+            uninstall();
+        }
+    }
+
+    private void install() {
+        if (isSupported()) {
+            // Allocated once, on the first demand, and reused from then on.
+            while (mBuffers.size() < mCount) {
+                byte[] buffer = new byte[mBufferSize];
+                mBuffers.add(buffer);
+                mFree.add(buffer);
+            }
+            mMethods.setPreviewCallbackWithBuffer(mCamera, mCallback);
+            for (byte[] buffer : mFree) {
+                mMethods.addCallbackBuffer(mCamera, buffer);
+            }
+            mFree.clear();
+        } else if (mListener != null) {
+            mCamera.setPreviewCallback(mCallback);
+        } else {
+            mCamera.setOneShotPreviewCallback(mCallback);
+        }
+        mInstalled = true;
+    }
+
+    private void uninstall() {
+        if (isSupported()) {
+            // The camera forgets queued buffers when the callback is removed, so all buffers not held by consumers are ours again.
+            mMethods.setPreviewCallbackWithBuffer(mCamera, null);
+            mFree.clear();
+            for (byte[] buffer : mBuffers) {
+                if (indexOf(mCheckedOut, buffer) < 0 && indexOf(mDispatching, buffer) < 0) {
+                    mFree.add(buffer);
+                }
+            }
+        } else {
+            mCamera.setPreviewCallback(null);
+        }
+        mInstalled = false;
+    }
+
+    /*
+     * Buffers are compared by identity.
+     */
+    private static int indexOf(List<byte[]> list, byte[] data) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == data) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,291 @@
+package com.yaji.viewfinder;
+
+import java.util.Arrays;
+
+import android.graphics.Rect;
+
+/*
+ * Cheap first stage of QR code detection. The Y plane is downsampled to 1/2, binarized with a coarse local threshold, and searched for the
+ * 1:1:3:1:1 run pattern of QR finder patterns, horizontally and then vertically through the pattern center. Finder patterns of codes with
+ * modules of 3 pixels or more are found; smaller ones blur away, which is why QRRecognizer decodes some rejected frames anyway.
+ * Frames without any candidate can be rejected without running the full-resolution binarizer and detector, which is the common case
+ * when nothing is in view. Buffers are reused between frames, so an instance must not be used from several threads at once.
+ */
+public class QRCandidateFinder {
+    // Downsampling factor. 4 would halve the cost again, but loses codes with modules of 4 pixels or less, common in wide frames.
+    private static final int SCALE = 2;
+    // Size of the threshold blocks, in downsampled pixels.
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    // Blocks with less difference between the darkest and the brightest pixel have no edges.
+    private static final int MIN_CONTRAST = 24;
+    // Too many candidates means a textured scene, the caller should not crop.
+    private static final int MAX_CANDIDATES = 32;
+    // Margin around the candidates, in modules. Finder pattern centers are 3.5 modules inside the code, more for rotated codes.
+    private static final int MARGIN_MODULES = 8;
+
+    private int mSmallWidth;
+    private int mSmallHeight;
+    private byte[] mSmall;
+    private byte[] mDark;
+    private int[] mThresholds;
+    private final int[] mRuns = new int[5];
+    private final int[] mCrossRuns = new int[5];
+
+    // Candidates in full resolution frame coordinates: x, y, module size.
+    private final int[] mCandidates = new int[MAX_CANDIDATES * 3];
+    private int mCount;
+
+    /*
+     * Search the given window of the Y plane. Returns the number of candidates found.
+     */
+    public int find(byte[] yuvData, int stride, int left, int top, int width, int height) {
+        mSmallWidth = width / SCALE;
+        mSmallHeight = height / SCALE;
+        mCount = 0;
+        if (mSmallWidth < BLOCK_SIZE || mSmallHeight < BLOCK_SIZE) {
+            return 0;
+        }
+        int size = mSmallWidth * mSmallHeight;
+        if (mSmall == null || mSmall.length < size) {
+            mSmall = new byte[size];
+            mDark = new byte[size];
+        }
+
+        ImageUtil.downscaleLuma(yuvData, stride, left, top, width, height, SCALE, mSmall);
+        binarize();
+
+        // Horizontal scan on every downsampled row.
+        for (int y = 0; y < mSmallHeight && mCount < MAX_CANDIDATES; y++) {
+            scanRow(y, mRuns, left, top);
+        }
+        return mCount;
+    }
+
+    public int getCandidateCount() {
+        return mCount;
+    }
+
+    public int getCandidateX(int index) {
+        return mCandidates[index * 3];
+    }
+
+    public int getCandidateY(int index) {
+        return mCandidates[index * 3 + 1];
+    }
+
+    public int getModuleSize(int index) {
+        return mCandidates[index * 3 + 2];
+    }
+
+    /*
+     * True if the scene was so textured that the candidate list was cut short.
+     */
+    public boolean isSaturated() {
+        return mCount >= MAX_CANDIDATES;
+    }
+
+    /*
+     * Bounding rectangle of the candidates with a margin enough for the whole code, clipped to the given window.
+     */
+    public Rect getCandidateBounds(int left, int top, int width, int height) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, module = 0;
+        for (int i = 0; i < mCount; i++) {
+            minX = Math.min(minX, getCandidateX(i));
+            maxX = Math.max(maxX, getCandidateX(i));
+            minY = Math.min(minY, getCandidateY(i));
+            maxY = Math.max(maxY, getCandidateY(i));
+            module = Math.max(module, getModuleSize(i));
+        }
+        int margin = module * MARGIN_MODULES;
+        Rect rect = new Rect(minX - margin, minY - margin, maxX + margin, maxY + margin);
+        if (!rect.intersect(left, top, left + width, top + height)) {
+            rect.set(left, top, left, top);
+        }
+        return rect;
+    }
+
+    /*
+     * Threshold each pixel at the average of the 3x3 blocks around its block. Blocks without contrast are taken as light.
+     */
+    private void binarize() {
+        final int sw = mSmallWidth;
+        final int bw = (mSmallWidth + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        final int bh = (mSmallHeight + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        if (mThresholds == null || mThresholds.length < bw * bh * 2) {
+            mThresholds = new int[bw * bh * 2];
+        }
+        // Mean and contrast of each block.
+        for (int by = 0; by < bh; by++) {
+            for (int bx = 0; bx < bw; bx++) {
+                int x0 = bx << BLOCK_SHIFT, y0 = by << BLOCK_SHIFT;
+                int x1 = Math.min(x0 + BLOCK_SIZE, sw), y1 = Math.min(y0 + BLOCK_SIZE, mSmallHeight);
+                int sum = 0, min = 255, max = 0;
+                for (int y = y0; y < y1; y++) {
+                    int p = y * sw;
+                    for (int x = x0; x < x1; x++) {
+                        int v = mSmall[p + x] & 0xff;
+                        sum += v;
+                        if (v < min) {
+                            min = v;
+                        }
+                        if (v > max) {
+                            max = v;
+                        }
+                    }
+                }
+                int i = (by * bw + bx) * 2;
+                mThresholds[i] = sum / ((x1 - x0) * (y1 - y0));
+                mThresholds[i + 1] = max - min;
+            }
+        }
+        for (int by = 0; by < bh; by++) {
+            for (int bx = 0; bx < bw; bx++) {
+                int threshold = -1;
+                if (mThresholds[(by * bw + bx) * 2 + 1] >= MIN_CONTRAST) {
+                    int sum = 0, n = 0;
+                    for (int ny = Math.max(0, by - 1); ny <= Math.min(bh - 1, by + 1); ny++) {
+                        for (int nx = Math.max(0, bx - 1); nx <= Math.min(bw - 1, bx + 1); nx++) {
+                            sum += mThresholds[(ny * bw + nx) * 2];
+                            n++;
+                        }
+                    }
+                    threshold = sum / n;
+                }
+                int x0 = bx << BLOCK_SHIFT, y0 = by << BLOCK_SHIFT;
+                int x1 = Math.min(x0 + BLOCK_SIZE, sw), y1 = Math.min(y0 + BLOCK_SIZE, mSmallHeight);
+                for (int y = y0; y < y1; y++) {
+                    int p = y * sw;
+                    for (int x = x0; x < x1; x++) {
+                        mDark[p + x] = (byte) (((mSmall[p + x] & 0xff) < threshold) ? 1 : 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Find dark-light-dark-light-dark runs of ratio 1:1:3:1:1 in a row.
+     */
+    private void scanRow(int y, int[] runs, int left, int top) {
+        final int sw = mSmallWidth;
+        final int row = y * sw;
+        int state = 0;
+        runs[0] = runs[1] = runs[2] = runs[3] = runs[4] = 0;
+        for (int x = 0; x < sw; x++) {
+            boolean dark = mDark[row + x] != 0;
+            if (dark) {
+                if ((state & 1) == 1) {
+                    // Light to dark.
+                    state++;
+                }
+                runs[state]++;
+            } else {
+                if ((state & 1) == 1) {
+                    runs[state]++;
+                } else if (state == 4) {
+                    // Dark to light after the fifth run, the pattern is complete.
+                    checkCandidate(runs, x, y, left, top);
+                    // Keep the last three runs, the next pattern may start at the third one.
+                    runs[0] = runs[2];
+                    runs[1] = runs[3];
+                    runs[2] = runs[4];
+                    runs[3] = 1;
+                    runs[4] = 0;
+                    state = 3;
+                } else if (runs[state] > 0) {
+                    // Dark to light.
+                    state++;
+                    runs[state]++;
+                }
+            }
+        }
+        if (state == 4) {
+            checkCandidate(runs, sw, y, left, top);
+        }
+    }
+
+    private static boolean isFinderRatio(int[] runs, int total) {
+        // Every run must be there, and a module at least a downsampled pixel. Shorter patterns are mostly noise.
+        if (total < 7 || runs[0] == 0 || runs[1] == 0 || runs[2] == 0 || runs[3] == 0 || runs[4] == 0) {
+            return false;
+        }
+        // Runs are only a few pixels long after downsampling, so the tolerance is wider than the full resolution detector.
+        float module = total / 7.0f;
+        float variance = module * 0.75f + 0.5f;
+        return Math.abs(module - runs[0]) < variance && Math.abs(module - runs[1]) < variance && Math.abs(3 * module - runs[2]) < 3 * variance
+                && Math.abs(module - runs[3]) < variance && Math.abs(module - runs[4]) < variance;
+    }
+
+    private void checkCandidate(int[] runs, int end, int y, int left, int top) {
+        int total = runs[0] + runs[1] + runs[2] + runs[3] + runs[4];
+        if (!isFinderRatio(runs, total)) {
+            return;
+        }
+        int centerX = end - runs[4] - runs[3] - runs[2] / 2;
+        if (!crossCheckVertical(centerX, y, total)) {
+            return;
+        }
+
+        // Full resolution coordinates.
+        int half = SCALE / 2;
+        int fx = left + centerX * SCALE + half;
+        int fy = top + y * SCALE + half;
+        int module = Math.max(1, total * SCALE / 7);
+
+        // Rows through the same pattern report it again.
+        for (int i = 0; i < mCount; i++) {
+            if (Math.abs(getCandidateX(i) - fx) < module * 3 && Math.abs(getCandidateY(i) - fy) < module * 3) {
+                return;
+            }
+        }
+        if (mCount < MAX_CANDIDATES) {
+            mCandidates[mCount * 3] = fx;
+            mCandidates[mCount * 3 + 1] = fy;
+            mCandidates[mCount * 3 + 2] = module;
+            mCount++;
+        }
+    }
+
+    /*
+     * Check the same run pattern vertically through the center.
+     */
+    private boolean crossCheckVertical(int x, int centerY, int horizontalTotal) {
+        final int sw = mSmallWidth;
+        final int h = mSmallHeight;
+        int[] runs = mCrossRuns;
+        Arrays.fill(runs, 0);
+
+        // Up from the center: center dark, light, outer dark.
+        int y = centerY;
+        while (y >= 0 && mDark[y * sw + x] != 0) {
+            runs[2]++;
+            y--;
+        }
+        while (y >= 0 && mDark[y * sw + x] == 0 && runs[1] <= horizontalTotal) {
+            runs[1]++;
+            y--;
+        }
+        while (y >= 0 && mDark[y * sw + x] != 0 && runs[0] <= horizontalTotal) {
+            runs[0]++;
+            y--;
+        }
+        // Down from the center.
+        y = centerY + 1;
+        while (y < h && mDark[y * sw + x] != 0) {
+            runs[2]++;
+            y++;
+        }
+        while (y < h && mDark[y * sw + x] == 0 && runs[3] <= horizontalTotal) {
+            runs[3]++;
+            y++;
+        }
+        while (y < h && mDark[y * sw + x] != 0 && runs[4] <= horizontalTotal) {
+            runs[4]++;
+            y++;
+        }
+        int total = runs[0] + runs[1] + runs[2] + runs[3] + runs[4];
+        // The pattern is square, unless the code is seen at a steep angle.
+        return total * 2 >= horizontalTotal && total <= horizontalTotal * 2 && isFinderRatio(runs, total);
+    }
+}
@@ -0,0 +1,273 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Decodes preview frames on a thread of its own, so that decoding never blocks the camera callbacks. Each job has a deadline and can be
+ * cancelled; both are checked between decode stages, since a ZXing decode itself cannot be interrupted. Results are posted to the handler
+ * of the job, and are not delivered for jobs cancelled in the meantime, so a teardown on the handler thread never races a decode.
+ */
+public class QRDecodeWorker {
+    private static final String LOG_TAG = "yaji";
+
+    /*
+     * Receiver of the decode result, called on the handler thread of the job. results is empty if nothing was found, or if the deadline
+     * passed before the decode was finished.
+     */
+    public interface Callback {
+        void onDecoded(Job job, List<QRResult> results);
+    }
+
+    /*
+     * Kinds of decode.
+     */
+    public static final int MODE_SINGLE = 0;
+    public static final int MODE_MULTIPLE = 1;
+    public static final int MODE_COARSE_TO_FINE = 2;
+    // Tiles, the region and the whole frame at once on the worker pool. For large frames, see TiledDecoder.
+    public static final int MODE_TILED = 3;
+
+    /*
+     * A preview frame to be decoded.
+     */
+    public static class Job {
+        private final byte[] mData;
+        private final YuvFormat mFormat;
+        private final PreviewBufferRing mRing;
+        private final int mMode;
+        private final Rect mRegion;
+        private final long mDeadline;
+        private final Handler mHandler;
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+        private int mGeneration;
+
+        /*
+         * Constructor. ring: ring the data belongs to, or null. region: region decoded first in MODE_SINGLE, or along with the tiles in
+         * MODE_TILED, or null. timeoutMillis: time from now after which the job is abandoned.
+         */
+        public Job(byte[] data, YuvFormat format, PreviewBufferRing ring, int mode, Rect region, long timeoutMillis, Handler handler,
+                Callback callback) {
+            mData = data;
+            mFormat = format;
+            mRing = ring;
+            mMode = mode;
+            mRegion = region;
+            mDeadline = SystemClock.uptimeMillis() + timeoutMillis;
+            mHandler = handler;
+            mCallback = callback;
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isExpired() {
+            return SystemClock.uptimeMillis() > mDeadline;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final List<Job> mPending = new ArrayList<Job>();
+    private int mGeneration;
+    private volatile QRRecognizer mRecognizer;
+    private volatile TiledDecoder mTiledDecoder;
+    private volatile QRResultCache mCache;
+    private volatile FormatStats mFormatStats;
+    private final BinarizerStrategy mBinarizerStrategy = new BinarizerStrategy();
+    private int mExpiredCount;
+
+    /*
+     * Constructor. Decodes with the given profile, result cache and format statistics until configure() is called.
+     */
+    public QRDecodeWorker(DecodeProfile profile, QRResultCache cache, FormatStats stats) {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "yaji-decode-" + mCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        setDecoders(profile, cache, stats);
+    }
+
+    /*
+     * Decode with the given profile, result cache and format statistics from the next job on.
+     */
+    public void configure(DecodeProfile profile, QRResultCache cache, FormatStats stats) {
+        if (mRecognizer.getProfile() != profile || mCache != cache || mFormatStats != stats) {
+            setDecoders(profile, cache, stats);
+        }
+    }
+
+    private void setDecoders(DecodeProfile profile, QRResultCache cache, FormatStats stats) {
+        QRRecognizer recognizer = new QRRecognizer(profile, stats);
+        recognizer.setResultCache(cache);
+        // What the strategy learned outlives the profile.
+        recognizer.setBinarizerStrategy(mBinarizerStrategy);
+        mCache = cache;
+        mFormatStats = stats;
+        mRecognizer = recognizer;
+        mTiledDecoder = new TiledDecoder(profile, cache, stats, mBinarizerStrategy);
+    }
+
+    /*
+     * Queue a job. Its buffer is checked out of the ring until the job is done.
+     */
+    public synchronized void submit(final Job job) {
+        if (job.mRing != null) {
+            job.mRing.checkout(job.mData);
+        }
+        job.mGeneration = mGeneration;
+        mPending.add(job);
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                process(job);
+            }
+        });
+    }
+
+    /*
+     * The number of jobs queued or being decoded.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /*
+     * The number of jobs abandoned because of their deadline.
+     */
+    public synchronized int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /*
+     * Binarizer strategy shared by the recognizers of this worker.
+     */
+    public BinarizerStrategy getBinarizerStrategy() {
+        return mBinarizerStrategy;
+    }
+
+    /*
+     * Cancel every job submitted so far. Results of them are not delivered any more.
+     */
+    public synchronized void cancelAll() {
+        mGeneration++;
+        for (Job job : mPending) {
+            job.cancel();
+        }
+    }
+
+    private boolean shouldStop(Job job) {
+        if (job.isCancelled()) {
+            return true;
+        }
+        if (job.isExpired()) {
+            synchronized (this) {
+                mExpiredCount++;
+            }
+            Log.d(LOG_TAG, "QRDecodeWorker, deadline passed");
+            return true;
+        }
+        return false;
+    }
+
+    private void process(final Job job) {
+        final List<QRResult> results = new ArrayList<QRResult>();
+        QRRecognizer recognizer = mRecognizer;
+        boolean recycleLater = false;
+        try {
+            if (!shouldStop(job)) {
+                switch (job.mMode) {
+                case MODE_MULTIPLE:
+                    results.addAll(recognizer.recognizeMultiple(job.mData, job.mFormat));
+                    break;
+                case MODE_COARSE_TO_FINE:
+                    if (recognizer.recognizeCoarseToFine(job.mData, job.mFormat)) {
+                        results.add(recognizer.getResult());
+                    }
+                    break;
+                case MODE_TILED:
+                    // Tasks may still read the frame after the first hit, it is given back when the last one is done.
+                    recycleLater = true;
+                    QRResult result = mTiledDecoder.decode(job.mData, job.mFormat, job.mRegion, Math.max(0, job.mDeadline
+                            - SystemClock.uptimeMillis()), new Runnable() {
+                        public void run() {
+                            if (job.mRing != null) {
+                                job.mRing.recycle(job.mData);
+                            }
+                        }
+                    });
+                    if (result != null) {
+                        results.add(result);
+                    }
+                    break;
+                default:
+                    // The region first, then the whole frame if there is still time.
+                    Rect region = job.mRegion;
+                    if (region != null && !region.isEmpty()) {
+                        PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(job.mData, job.mFormat.getYStride(),
+                                job.mFormat.getHeight(), region.left, region.top, region.width(), region.height());
+                        if (recognizer.recognize(source)) {
+                            results.add(recognizer.getResult());
+                        }
+                    }
+                    if (results.isEmpty() && !shouldStop(job)
+                            && recognizer.recognizeSameFrame(new PlanarYUVLuminanceSource(job.mData, job.mFormat))) {
+                        results.add(recognizer.getResult());
+                    }
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "QRDecodeWorker, decode failed", e);
+        } finally {
+            // The frame is not needed any more whatever happened.
+            if (job.mRing != null && !recycleLater) {
+                job.mRing.recycle(job.mData);
+            }
+            synchronized (this) {
+                mPending.remove(job);
+            }
+        }
+
+        if (!job.isCancelled()) {
+            job.mHandler.post(new Runnable() {
+                public void run() {
+                    // Checked again on the handler thread, the job may have been cancelled while this was queued.
+                    boolean cancelled;
+                    synchronized (QRDecodeWorker.this) {
+                        cancelled = job.isCancelled() || job.mGeneration != mGeneration;
+                    }
+                    if (!cancelled) {
+                        job.mCallback.onDecoded(job, results);
+                    }
+                }
+            });
+        }
+    }
+
+    /*
+     * Stop the worker thread. Pending jobs are cancelled.
+     */
+    public void shutdown() {
+        cancelAll();
+        mExecutor.shutdown();
+    }
+}
@@ -1,114 +1,496 @@
 package com.yaji.viewfinder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.util.Log;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.BinaryBitmap;
-import com.google.zxing.ChecksumException;
-import com.google.zxing.FormatException;
 import com.google.zxing.LuminanceSource;
-import com.google.zxing.MultiFormatReader;
 import com.google.zxing.NotFoundException;
-import com.google.zxing.Reader;
 import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
 import com.google.zxing.client.result.EmailAddressParsedResult;
 import com.google.zxing.client.result.ParsedResult;
 import com.google.zxing.client.result.ParsedResultType;
 import com.google.zxing.client.result.ResultParser;
 import com.google.zxing.client.result.SMSParsedResult;
-import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 
+/*
+ * Recognize QR code (and other barcodes depending on the decode profile).
+ * The reader is built once and reused, so an instance must not be used from several threads at once.
+ * Binarizers are chosen per frame by a BinarizerStrategy.
+ */
 public class QRRecognizer {
     private static final String LOG_TAG = "yaji";
 
+    // Every this many frames rejected in a row by the candidate finder, the next one is decoded anyway, for codes too small for it.
+    static final int FULL_DECODE_INTERVAL = 4;
+
     String mText;
     ParsedResultType mType;
     Intent mIntent;
+    QRResult mResult;
+
+    private final DecodeProfile mProfile;
+    private final AdaptiveFormatReader mReader;
+    private final FormatStats mStats;
+    private QRResultCache mCache;
+    private QRCandidateFinder mCandidateFinder;
+    private int mRejectedCount;
+    private BinarizerStrategy mBinarizerStrategy = new BinarizerStrategy();
+    private boolean mRecordStats = true;
+    private volatile AtomicBoolean mCancel;
+
+    public QRRecognizer() {
+        this(DecodeProfile.QR);
+    }
+
+    public QRRecognizer(DecodeProfile profile) {
+        this(profile, null);
+    }
+
+    /*
+     * Constructor. stats: statistics to order the readers of the profile by, shared between recognizers. null for the default order.
+     */
+    public QRRecognizer(DecodeProfile profile, FormatStats stats) {
+        mProfile = profile;
+        mStats = stats;
+        mReader = new AdaptiveFormatReader(profile, stats);
+    }
+
+    public DecodeProfile getProfile() {
+        return mProfile;
+    }
+
+    /*
+     * Cache to look up recognized codes in before parsing them. May be shared between recognizers.
+     */
+    public void setResultCache(QRResultCache cache) {
+        mCache = cache;
+    }
+
+    /*
+     * Whether the time of each stage is recorded in QRStageStats. Off for work that is not part of the preview pipeline.
+     */
+    public void setRecordStats(boolean recordStats) {
+        mRecordStats = recordStats;
+    }
+
+    /*
+     * Strategy choosing the binarizers. May be shared between recognizers, so that what it learns lasts for the session.
+     */
+    public void setBinarizerStrategy(BinarizerStrategy strategy) {
+        mBinarizerStrategy = strategy;
+    }
+
+    /*
+     * Flag to give up at, checked between binarizer attempts, or null. A ZXing decode itself cannot be interrupted.
+     */
+    public void setCancelFlag(AtomicBoolean cancel) {
+        mCancel = cancel;
+    }
+
+    private boolean isCancelled() {
+        AtomicBoolean cancel = mCancel;
+        return cancel != null && cancel.get();
+    }
 
+    /*
+     * Each public recognize method takes one frame, counted once in the format statistics however many times it is decoded, so that the
+     * rare formats tried on every FormatStats.EXPLORE_INTERVAL-th frame do not depend on retries.
+     */
     public boolean recognize(Bitmap bitmap) {
-        boolean isFound = false;
+        countFrame();
+        long start = System.nanoTime();
+        LuminanceSource source = new RGBLuminanceSource(bitmap);
+        long elapsed = System.nanoTime() - start;
+        boolean isFound = decode(source);
+        record(QRStageStats.STAGE_LUMINANCE, elapsed, isFound);
+        return isFound;
+    }
+
+    /*
+     * Recognize from camera preview data directly. The Y plane is used as is, so no conversion and no frame sized allocation is needed.
+     */
+    public boolean recognize(byte[] data, YuvFormat format) {
+        countFrame();
+        return decodeFrame(data, format);
+    }
+
+    /*
+     * Recognize within the given region of the preview frame first. Only the region is binarized and searched, and the whole frame is tried
+     * when nothing is found there.
+     */
+    public boolean recognize(byte[] data, YuvFormat format, Rect roi) {
+        countFrame();
+        return decodeRegion(data, format, roi);
+    }
 
+    /*
+     * Recognize with a coarse-to-fine cascade, for scanning frames which mostly contain no code. Finder pattern candidates are searched on
+     * a downsampled frame first, and frames without any are rejected right away, except one in FULL_DECODE_INTERVAL so that codes too
+     * small for the downsampled frame are still found, only later. When three or more candidates are found, the region around them is
+     * decoded at full resolution first, otherwise the whole frame. Profiles other than plain QR code decode the whole frame as usual.
+     */
+    public boolean recognizeCoarseToFine(byte[] data, YuvFormat format) {
+        countFrame();
+        if (!mProfile.isQROnly() || mProfile.isPureBarcode()) {
+            return decodeFrame(data, format);
+        }
+        if (mCandidateFinder == null) {
+            mCandidateFinder = new QRCandidateFinder();
+        }
+        int width = format.getWidth();
+        int height = format.getHeight();
+        long start = System.nanoTime();
+        int count = mCandidateFinder.find(data, format.getYStride(), 0, 0, width, height);
+        record(QRStageStats.STAGE_DETECT, System.nanoTime() - start, count > 0);
+        if (count == 0) {
+            if (++mRejectedCount < FULL_DECODE_INTERVAL) {
+                clearResult();
+                return false;
+            }
+            mRejectedCount = 0;
+            return decodeFrame(data, format);
+        }
+        mRejectedCount = 0;
+        if (count >= 3 && !mCandidateFinder.isSaturated()) {
+            // Falls back to the whole frame if the real finder patterns were missed at the coarse scale.
+            return decodeRegion(data, format, mCandidateFinder.getCandidateBounds(0, 0, width, height));
+        }
+        return decodeFrame(data, format);
+    }
+
+    /*
+     * Recognize in an image, a frame of its own.
+     */
+    public boolean recognize(LuminanceSource source) {
+        countFrame();
+        return decode(source);
+    }
+
+    /*
+     * Recognize in another part of a frame given to a recognize method before, by this recognizer or another one sharing the format
+     * statistics. The frame is not counted again.
+     */
+    public boolean recognizeSameFrame(LuminanceSource source) {
+        return decode(source);
+    }
+
+    private void countFrame() {
+        if (mStats != null) {
+            mStats.countFrame();
+        }
+    }
+
+    private boolean decodeFrame(byte[] data, YuvFormat format) {
+        long start = System.nanoTime();
+        LuminanceSource source = new PlanarYUVLuminanceSource(data, format);
+        long elapsed = System.nanoTime() - start;
+        boolean isFound = decode(source);
+        record(QRStageStats.STAGE_LUMINANCE, elapsed, isFound);
+        return isFound;
+    }
+
+    private boolean decodeRegion(byte[] data, YuvFormat format, Rect roi) {
+        if (roi != null && !roi.isEmpty() && (roi.width() < format.getWidth() || roi.height() < format.getHeight())) {
+            PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(data, format.getYStride(), format.getHeight(), roi.left, roi.top,
+                    roi.width(), roi.height());
+            if (decode(source)) {
+                return true;
+            }
+            Log.d(LOG_TAG, "QRRecognizer, not found in " + roi + ", try the whole frame");
+        }
+        return decodeFrame(data, format);
+    }
+
+    private boolean decode(LuminanceSource source) {
         // Initialize
+        clearResult();
+
+        // The cheap binarizer first if the frame looks high-contrast, then Hybrid.
+        int[] order = mBinarizerStrategy.getOrder(source);
+        int succeeded = -1;
+        Result result = null;
+        long decoded = 0;
+        for (int i = 0; i < order.length && succeeded < 0 && !isCancelled(); i++) {
+            // Get BinaryBitmap object to be used for QR code recognition.
+            long start = System.nanoTime();
+            BinaryBitmap binaryBitmap = new BinaryBitmap(BinarizerStrategy.create(order[i], source));
+            long binarized = 0;
+            try {
+                // Binarize first so that it is timed apart from the decode. The matrix is kept in the BinaryBitmap and reused by the readers.
+                binaryBitmap.getBlackMatrix();
+                binarized = System.nanoTime();
+                // Decode with the readers of the profile, the most successful first. Checksum and format errors are reported as NotFoundException.
+                result = mReader.decode(binaryBitmap);
+            } catch (NotFoundException e) {
+                // The common case while scanning, the next binarizer is tried. Logged once below if none finds anything.
+            } finally {
+                mReader.reset();
+            }
+            decoded = System.nanoTime();
+
+            // Check if we succeeded in recognition.
+            if (result != null && result.getBarcodeFormat() != null) {
+                succeeded = i;
+            }
+            recordStages(start, binarized, decoded, succeeded >= 0);
+        }
+        if (succeeded >= 0 || !isCancelled()) {
+            // Attempts given up on say nothing about the binarizers.
+            mBinarizerStrategy.report(order, succeeded);
+        }
+        if (succeeded < 0) {
+            Log.d(LOG_TAG, "QRRecognizer, not found with " + order.length + " binarizer(s)");
+        }
+
+        boolean isFound = succeeded >= 0;
+        if (isFound) {
+            setResult(result);
+            record(QRStageStats.STAGE_PARSE, System.nanoTime() - decoded, true);
+        }
+        return isFound;
+    }
+
+    /*
+     * Record the time of binarization and decode of one attempt. binarized is 0 if the binarization failed.
+     */
+    private void recordStages(long start, long binarized, long decoded, boolean isFound) {
+        if (binarized == 0) {
+            record(QRStageStats.STAGE_BINARIZE, decoded - start, false);
+            return;
+        }
+        record(QRStageStats.STAGE_BINARIZE, binarized - start, isFound);
+        record(QRStageStats.STAGE_DECODE, decoded - binarized, isFound);
+    }
+
+    private void record(int stage, long nanos, boolean hit) {
+        if (mRecordStats) {
+            QRStageStats.get().record(stage, nanos, hit);
+        }
+    }
+
+    /*
+     * Recognize all codes in the preview frame. See recognizeMultiple(LuminanceSource).
+     */
+    public List<QRResult> recognizeMultiple(byte[] data, YuvFormat format) {
+        long start = System.nanoTime();
+        LuminanceSource source = new PlanarYUVLuminanceSource(data, format);
+        long elapsed = System.nanoTime() - start;
+        countFrame();
+        List<QRResult> results = decodeMultiple(source);
+        record(QRStageStats.STAGE_LUMINANCE, elapsed, !results.isEmpty());
+        return results;
+    }
+
+    /*
+     * Recognize all codes in the image, nearest to the center first. All codes are searched in the same binarized matrix, Hybrid is only
+     * tried when the cheap binarizer finds nothing. Empty if nothing is found. Results of the single code API are set to the first one.
+     */
+    public List<QRResult> recognizeMultiple(LuminanceSource source) {
+        countFrame();
+        return decodeMultiple(source);
+    }
+
+    private List<QRResult> decodeMultiple(LuminanceSource source) {
+        clearResult();
+
+        int[] order = mBinarizerStrategy.getOrder(source);
+        int succeeded = -1;
+        Result[] results = null;
+        long decoded = 0;
+        for (int i = 0; i < order.length && succeeded < 0 && !isCancelled(); i++) {
+            long start = System.nanoTime();
+            BinaryBitmap binaryBitmap = new BinaryBitmap(BinarizerStrategy.create(order[i], source));
+            long binarized = 0;
+            try {
+                binaryBitmap.getBlackMatrix();
+                binarized = System.nanoTime();
+                if (mProfile.isQROnly()) {
+                    // Detects all finder pattern triples in one pass over the matrix.
+                    results = new QRCodeMultiReader().decodeMultiple(binaryBitmap, mProfile.getHints());
+                } else {
+                    results = new GenericMultipleBarcodeReader(mReader).decodeMultiple(binaryBitmap, mProfile.getHints());
+                }
+            } catch (NotFoundException e) {
+                // The common case while scanning, the next binarizer is tried. Logged once below if none finds anything.
+            } finally {
+                mReader.reset();
+            }
+            decoded = System.nanoTime();
+
+            if (results != null && results.length > 0) {
+                succeeded = i;
+            }
+            recordStages(start, binarized, decoded, succeeded >= 0);
+        }
+        if (succeeded >= 0 || !isCancelled()) {
+            // Attempts given up on say nothing about the binarizers.
+            mBinarizerStrategy.report(order, succeeded);
+        }
+        if (succeeded < 0) {
+            Log.d(LOG_TAG, "QRRecognizer, not found with " + order.length + " binarizer(s)");
+        }
+
+        List<QRResult> list = new ArrayList<QRResult>();
+        if (succeeded < 0) {
+            return list;
+        }
+
+        // Nearest to the center first. The preview frame is stretched over the display, so the center is the same.
+        final float centerX = source.getWidth() / 2.0f;
+        final float centerY = source.getHeight() / 2.0f;
+        final Map<Result, Float> distances = new HashMap<Result, Float>();
+        for (Result result : results) {
+            distances.put(result, getDistance(result, centerX, centerY));
+        }
+        Arrays.sort(results, new Comparator<Result>() {
+            public int compare(Result lhs, Result rhs) {
+                return distances.get(lhs).compareTo(distances.get(rhs));
+            }
+        });
+
+        Set<String> keys = new HashSet<String>();
+        for (Result result : results) {
+            setResult(result);
+            // The generic reader may find the same code twice in overlapping crops.
+            if (keys.add(mResult.getKey())) {
+                list.add(mResult);
+            }
+        }
+
+        // The nearest one is the single result.
+        QRResult nearest = list.get(0);
+        mText = nearest.getText();
+        mType = nearest.getType();
+        mIntent = nearest.getLaunchIntent();
+        mResult = nearest;
+        record(QRStageStats.STAGE_PARSE, System.nanoTime() - decoded, true);
+        Log.d(LOG_TAG, "QRRecognizer.recognizeMultiple(), found:" + list.size());
+        return list;
+    }
+
+    /*
+     * Distance between the center of the code and the given point. Infinite if the code has no position.
+     */
+    private static float getDistance(Result result, float x, float y) {
+        ResultPoint[] points = result.getResultPoints();
+        if (points == null || points.length == 0) {
+            return Float.MAX_VALUE;
+        }
+        float sumX = 0;
+        float sumY = 0;
+        int count = 0;
+        for (ResultPoint point : points) {
+            if (point != null) {
+                sumX += point.getX();
+                sumY += point.getY();
+                count++;
+            }
+        }
+        if (count == 0) {
+            return Float.MAX_VALUE;
+        }
+        float dx = sumX / count - x;
+        float dy = sumY / count - y;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private void clearResult() {
         mText = null;
         mType = null;
         mIntent = null;
+        mResult = null;
+    }
 
-        // Get BinaryBitmap object to be used for QR code recognition.
-        LuminanceSource source = new RGBLuminanceSource(bitmap);
-        BinaryBitmap binaryBitmap = new BinaryBitmap(new HybridBinarizer(source));
+    /*
+     * Set the decoded code as the result, parsing it unless it is cached.
+     */
+    private void setResult(Result result) {
+        BarcodeFormat format = result.getBarcodeFormat();
+        mText = result.getText();
+        mType = null;
+        mIntent = null;
+        Log.d(LOG_TAG, "QR code, format:" + format.name() + ", text:" + result.getText());
+        // The same code scanned again, reuse the parsed type and intent.
+        QRResult cached = (mCache != null) ? mCache.get(mText, format) : null;
+        if (cached != null) {
+            mType = cached.getType();
+            mIntent = cached.getLaunchIntent();
+            mResult = cached;
+            return;
+        }
+        if (format.name().equals(BarcodeFormat.QR_CODE.name())) {
+            ParsedResult parsedResult = ResultParser.parseResult(result);
+            mType = parsedResult.getType();
+            Log.d(LOG_TAG, "QR code, type:" + mType.name());
 
-        // QR code result
-        Result result = null;
-        BarcodeFormat format = null;
-        try {
-            // Create reader for multi-format.
-            Reader reader = new MultiFormatReader();
-            result = reader.decode(binaryBitmap);
-            if (result != null) {
-                format = result.getBarcodeFormat();
-                mText = result.getText();
+            switch (mType) {
+            case ADDRESSBOOK:
+            case PRODUCT:
+            case WIFI:
+            case ISBN:
+            case CALENDAR:
+                // Not supported.
+                // See
+                // http://code.google.com/p/zxing/source/browse/trunk/android/src/com/google/zxing/client/android/result/ResultHandler.java
+                break;
+            case EMAIL_ADDRESS:
+                EmailAddressParsedResult er = (EmailAddressParsedResult) parsedResult;
+                mIntent = new Intent(Intent.ACTION_SENDTO, Uri.parse(er.getMailtoURI()));
+                mIntent.putExtra(Intent.EXTRA_SUBJECT, er.getSubject());
+                mIntent.putExtra(Intent.EXTRA_TEXT, er.getBody());
+                mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                break;
+            case URI:
+                mIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(mText));
+                mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                break;
+            case GEO:
+                mIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(mText));
+                mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                break;
+            case TEL:
+                mIntent = new Intent(Intent.ACTION_DIAL, Uri.parse(mText));
+                mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                break;
+            case SMS:
+                SMSParsedResult sr = (SMSParsedResult) parsedResult;
+                mIntent = new Intent(Intent.ACTION_SENDTO, Uri.parse(sr.getSMSURI()));
+                mIntent.putExtra("sms_body", sr.getBody());
+                mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                break;
+            default:
+                break;
             }
-        } catch (NotFoundException e) {
-            Log.w(LOG_TAG, "NotFoundException:" + e.getMessage());
-        } catch (ChecksumException e) {
-            Log.w(LOG_TAG, "ChecksumException:" + e.getMessage());
-        } catch (FormatException e) {
-            Log.w(LOG_TAG, "FormatException:" + e.getMessage());
-        }
-
-        // Check if we succeeded in recognition.
-        if (format != null) {
-            Log.d(LOG_TAG, "QR code, format:" + format.name() + ", text:" + result.getText());
-            if (format.name().equals(BarcodeFormat.QR_CODE.name())) {
-                ParsedResult parsedResult = ResultParser.parseResult(result);
-                mType = parsedResult.getType();
-                Log.d(LOG_TAG, "QR code, type:" + mType.name());
-
-                switch (mType) {
-                case ADDRESSBOOK:
-                case PRODUCT:
-                case WIFI:
-                case ISBN:
-                case CALENDAR:
-                    // Not supported.
-                    // See
-                    // http://code.google.com/p/zxing/source/browse/trunk/android/src/com/google/zxing/client/android/result/ResultHandler.java
-                    break;
-                case EMAIL_ADDRESS:
-                    EmailAddressParsedResult er = (EmailAddressParsedResult) parsedResult;
-                    mIntent = new Intent(Intent.ACTION_SENDTO, Uri.parse(er.getMailtoURI()));
-                    mIntent.putExtra(Intent.EXTRA_SUBJECT, er.getSubject());
-                    mIntent.putExtra(Intent.EXTRA_TEXT, er.getBody());
-                    mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    break;
-                case URI:
-                    mIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(mText));
-                    mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    break;
-                case GEO:
-                    mIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(mText));
-                    mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    break;
-                case TEL:
-                    mIntent = new Intent(Intent.ACTION_DIAL, Uri.parse(mText));
-                    mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    break;
-                case SMS:
-                    SMSParsedResult sr = (SMSParsedResult) parsedResult;
-                    mIntent = new Intent(Intent.ACTION_SENDTO, Uri.parse(sr.getSMSURI()));
-                    mIntent.putExtra("sms_body", sr.getBody());
-                    mIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    break;
-                default:
-                    break;
-                }
-            }
-            isFound = true;
         }
-        return isFound;
+        mResult = new QRResult(mText, format, mType, mIntent);
+        if (mCache != null) {
+            mCache.put(mResult);
+        }
+    }
+
+    /*
+     * Result of the last successful recognition, or null.
+     */
+    public QRResult getResult() {
+        return mResult;
     }
 
     public String getText() {
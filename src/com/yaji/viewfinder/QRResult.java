@@ -0,0 +1,53 @@
+package com.yaji.viewfinder;
+
+import android.content.Intent;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.client.result.ParsedResultType;
+
+/*
+ * Recognized code with its parsed type and the intent to launch the related application.
+ */
+public class QRResult {
+    private final String mText;
+    private final BarcodeFormat mFormat;
+    private final ParsedResultType mType;
+    private final Intent mIntent;
+
+    /*
+     * Constructor. type and intent may be null.
+     */
+    public QRResult(String text, BarcodeFormat format, ParsedResultType type, Intent intent) {
+        mText = text;
+        mFormat = format;
+        mType = type;
+        mIntent = intent;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public BarcodeFormat getFormat() {
+        return mFormat;
+    }
+
+    public ParsedResultType getType() {
+        return mType;
+    }
+
+    public Intent getLaunchIntent() {
+        return mIntent;
+    }
+
+    /*
+     * Key identifying the same code, raw text and format.
+     */
+    public String getKey() {
+        return createKey(mText, mFormat);
+    }
+
+    static String createKey(String text, BarcodeFormat format) {
+        return format.name() + ":" + text;
+    }
+}
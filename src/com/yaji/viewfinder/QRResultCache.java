@@ -0,0 +1,116 @@
+package com.yaji.viewfinder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.google.zxing.BarcodeFormat;
+
+/*
+ * Small LRU cache of recognized codes keyed on raw text and format, so that scanning the same code again reuses its parsed type and intent
+ * instead of parsing it. Entries expire after a while. Also remembers when each code was launched last, to suppress launching the same
+ * code again within a window. Thread safe.
+ */
+public class QRResultCache {
+    private final int mMaxEntries;
+    private final long mMaxAgeMillis;
+    private long mRelaunchWindowMillis;
+    private int mHits;
+    private int mMisses;
+
+    private final LinkedHashMap<String, CacheEntry> mEntries;
+
+    private static class CacheEntry {
+        final QRResult result;
+        final long createdTime;
+        long launchedTime = -1;
+
+        CacheEntry(QRResult result, long createdTime) {
+            this.result = result;
+            this.createdTime = createdTime;
+        }
+    }
+
+    /*
+     * Constructor.
+     */
+    public QRResultCache(final int maxEntries, long maxAgeMillis, long relaunchWindowMillis) {
+        mMaxEntries = maxEntries;
+        mMaxAgeMillis = maxAgeMillis;
+        mRelaunchWindowMillis = relaunchWindowMillis;
+        // Access order, the eldest entry is the least recently used one.
+        mEntries = new LinkedHashMap<String, CacheEntry>(maxEntries * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /*
+     * Time in which the same code is not launched again. 0 disables the suppression.
+     */
+    public synchronized void setRelaunchWindow(long relaunchWindowMillis) {
+        mRelaunchWindowMillis = relaunchWindowMillis;
+    }
+
+    /*
+     * Get the cached result of the code, or null.
+     */
+    public synchronized QRResult get(String text, BarcodeFormat format) {
+        String key = QRResult.createKey(text, format);
+        CacheEntry entry = mEntries.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.createdTime > mMaxAgeMillis) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.result;
+    }
+
+    /*
+     * Add a result.
+     */
+    public synchronized void put(QRResult result) {
+        mEntries.put(result.getKey(), new CacheEntry(result, SystemClock.elapsedRealtime()));
+    }
+
+    /*
+     * Check if the code may be launched now, and if so record it as launched.
+     * Returns false if the same code was launched within the relaunch window.
+     */
+    public synchronized boolean acquireLaunch(QRResult result) {
+        long now = SystemClock.elapsedRealtime();
+        CacheEntry entry = mEntries.get(result.getKey());
+        if (entry == null) {
+            entry = new CacheEntry(result, now);
+            mEntries.put(result.getKey(), entry);
+        } else if (entry.launchedTime >= 0 && now - entry.launchedTime < mRelaunchWindowMillis) {
+            return false;
+        }
+        entry.launchedTime = now;
+        return true;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /*
+     * Drop all entries. Counters are kept.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+}
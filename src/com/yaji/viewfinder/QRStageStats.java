@@ -0,0 +1,147 @@
+package com.yaji.viewfinder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.util.Log;
+
+/*
+ * Process-wide latency histograms of the stages of the QR code pipeline, with hit and miss counts, to see where time goes on each device.
+ * The conversion of silent captures is kept apart in stages of its own. Buckets are fixed so that recording costs no allocation. Thread
+ * safe.
+ */
+public class QRStageStats {
+    private static final String LOG_TAG = "yaji";
+
+    // From the request of a frame to its delivery.
+    public static final int STAGE_ACQUIRE = 0;
+    // Silent capture, not QR: YUV to RGB conversion.
+    public static final int STAGE_CAPTURE_CONVERT = 1;
+    // Silent capture, not QR: filling a bitmap with converted pixels.
+    public static final int STAGE_CAPTURE_BITMAP = 2;
+    // Creation of the luminance source.
+    public static final int STAGE_LUMINANCE = 3;
+    // Binarization of the luminance.
+    public static final int STAGE_BINARIZE = 4;
+    // Coarse finder pattern search. ZXing's own detection runs inside the reader, so it is counted in STAGE_DECODE.
+    public static final int STAGE_DETECT = 5;
+    // ZXing reader: detection and decode.
+    public static final int STAGE_DECODE = 6;
+    // Parsing the text and building the launch intent, or the cache lookup.
+    public static final int STAGE_PARSE = 7;
+    // Focus and motion check of a frame. A hit is a frame accepted for decoding.
+    public static final int STAGE_QUALITY = 8;
+
+    private static final String[] STAGE_NAMES = { "acquire", "capture-convert", "capture-bitmap", "luminance", "binarize", "detect",
+            "decode", "parse", "quality" };
+
+    // Upper bounds of the buckets in microseconds. The last bucket has no bound.
+    private static final long[] BUCKET_BOUNDS = { 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000 };
+
+    private static QRStageStats sInstance;
+
+    private final long[][] mBuckets = new long[STAGE_NAMES.length][BUCKET_BOUNDS.length + 1];
+    private final long[] mHits = new long[STAGE_NAMES.length];
+    private final long[] mMisses = new long[STAGE_NAMES.length];
+    private final long[] mTotalMicros = new long[STAGE_NAMES.length];
+    private final long[] mMaxMicros = new long[STAGE_NAMES.length];
+
+    /*
+     * Get the process-wide instance.
+     */
+    public static synchronized QRStageStats get() {
+        if (sInstance == null) {
+            sInstance = new QRStageStats();
+        }
+        return sInstance;
+    }
+
+    /*
+     * Record a stage which took the given time, measured with System.nanoTime(). hit: the attempt it was part of found something.
+     */
+    public synchronized void record(int stage, long nanos, boolean hit) {
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && micros > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mBuckets[stage][bucket]++;
+        if (hit) {
+            mHits[stage]++;
+        } else {
+            mMisses[stage]++;
+        }
+        mTotalMicros[stage] += micros;
+        if (micros > mMaxMicros[stage]) {
+            mMaxMicros[stage] = micros;
+        }
+    }
+
+    /*
+     * Clear all histograms.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            Arrays.fill(mBuckets[i], 0);
+            mHits[i] = 0;
+            mMisses[i] = 0;
+            mTotalMicros[i] = 0;
+            mMaxMicros[i] = 0;
+        }
+    }
+
+    /*
+     * Print the histograms. Stages never recorded are skipped.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        StringBuilder header = new StringBuilder(String.format(Locale.US, "%-15s %7s %7s %9s %9s |", "stage", "hit", "miss", "avg(us)",
+                "max(us)"));
+        for (long bound : BUCKET_BOUNDS) {
+            header.append(String.format(Locale.US, " %8s", "<=" + formatMicros(bound)));
+        }
+        header.append(String.format(Locale.US, " %8s", ">" + formatMicros(BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1])));
+        writer.println(header);
+
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            long count = mHits[i] + mMisses[i];
+            if (count == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "%-15s %7d %7d %9d %9d |", STAGE_NAMES[i], mHits[i], mMisses[i],
+                    mTotalMicros[i] / count, mMaxMicros[i]));
+            for (long n : mBuckets[i]) {
+                line.append(String.format(Locale.US, " %8d", n));
+            }
+            writer.println(line);
+        }
+    }
+
+    /*
+     * Write the histograms into a text file. Returns false on failure.
+     */
+    public boolean exportToFile(File file) {
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+            dump(writer);
+            writer.flush();
+            return !writer.checkError();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "QRStageStats.exportToFile() failed", e);
+            return false;
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static String formatMicros(long micros) {
+        return (micros >= 1000) ? (micros / 1000) + "ms" : micros + "us";
+    }
+}
@@ -8,11 +8,16 @@ import android.graphics.BitmapFactory;
 import com.google.zxing.LuminanceSource;
 
 /**
- * This class is used to help decode images from files which arrive as RGB data from Android bitmaps. It does not support cropping or rotation.
+ * This class is used to help decode images from files which arrive as RGB data from Android bitmaps. It is a view over a luminance buffer,
+ * so cropping and rotation return a new view sharing the same buffer without copying it.
  */
 public final class RGBLuminanceSource extends LuminanceSource {
 
     private final byte[] luminances;
+    // Index of the top-left pixel of this view, and how the index moves to the next pixel on the right and to the next row.
+    private final int offset;
+    private final int xStep;
+    private final int yStep;
 
     public RGBLuminanceSource(String path) throws FileNotFoundException {
         this(loadBitmap(path));
@@ -45,6 +50,17 @@ public final class RGBLuminanceSource extends LuminanceSource {
                 }
             }
         }
+        offset = 0;
+        xStep = 1;
+        yStep = width;
+    }
+
+    private RGBLuminanceSource(byte[] luminances, int offset, int xStep, int yStep, int width, int height) {
+        super(width, height);
+        this.luminances = luminances;
+        this.offset = offset;
+        this.xStep = xStep;
+        this.yStep = yStep;
     }
 
     @Override
@@ -57,15 +73,59 @@ public final class RGBLuminanceSource extends LuminanceSource {
             row = new byte[width];
         }
 
-        System.arraycopy(luminances, y * width, row, 0, width);
+        int index = offset + y * yStep;
+        if (xStep == 1) {
+            System.arraycopy(luminances, index, row, 0, width);
+        } else {
+            // Rotated view, walk through the buffer.
+            for (int x = 0; x < width; x++, index += xStep) {
+                row[x] = luminances[index];
+            }
+        }
         return row;
     }
 
-    // Since this class does not support cropping, the underlying byte array already contains
-    // exactly what the caller is asking for, so give it to them without a copy.
     @Override
     public byte[] getMatrix() {
-        return luminances;
+        int width = getWidth();
+        int height = getHeight();
+
+        // If this view is the whole buffer as is, give it to the caller without a copy.
+        if (offset == 0 && xStep == 1 && yStep == width && luminances.length == width * height) {
+            return luminances;
+        }
+
+        byte[] matrix = new byte[width * height];
+        byte[] row = new byte[width];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(getRow(y, row), 0, matrix, y * width, width);
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || left + width > getWidth() || top + height > getHeight()) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        return new RGBLuminanceSource(luminances, offset + left * xStep + top * yStep, xStep, yStep, width, height);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    // The new top-left pixel is the old top-right one. Moving right in the new view moves down in the old one, and moving down in the new
+    // view moves left in the old one.
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        return new RGBLuminanceSource(luminances, offset + (getWidth() - 1) * xStep, yStep, -xStep, getHeight(), getWidth());
     }
 
     private static Bitmap loadBitmap(String path) throws FileNotFoundException {
@@ -0,0 +1,103 @@
+package com.yaji.viewfinder;
+
+/*
+ * Table driven YUV420SP to ARGB converter. Same arithmetic as ReferenceYuvConverter, but every multiply is looked up from a table built
+ * once, and clamping is done by indexing a table with the 8 bit channel value, so the inner loop has neither multiplies nor branches.
+ */
+public class TableYuvConverter implements YuvConverter {
+    public static final String NAME = "table";
+
+    // Channel sums are in 10 bit fixed point. (sum >> 10) ranges over [-259, 534], so shift it into the clamp tables by this offset.
+    private static final int CLAMP_OFFSET = 384;
+    private static final int CLAMP_SIZE = 1024;
+
+    // Y contribution, with the clamp offset already added so that (sum >> 10) is directly an index of the clamp tables.
+    private static final int[] TABLE_Y = new int[256];
+    private static final int[] TABLE_RV = new int[256];
+    private static final int[] TABLE_GV = new int[256];
+    private static final int[] TABLE_GU = new int[256];
+    private static final int[] TABLE_BU = new int[256];
+
+    // Clamped channel value, already shifted to its position in ARGB.
+    private static final int[] CLAMP_R = new int[CLAMP_SIZE];
+    private static final int[] CLAMP_G = new int[CLAMP_SIZE];
+    private static final int[] CLAMP_B = new int[CLAMP_SIZE];
+
+    // Same for RGB565.
+    private static final short[] CLAMP_R565 = new short[CLAMP_SIZE];
+    private static final short[] CLAMP_G565 = new short[CLAMP_SIZE];
+    private static final short[] CLAMP_B565 = new short[CLAMP_SIZE];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            TABLE_Y[i] = 1192 * Math.max(i - 16, 0) + (CLAMP_OFFSET << 10);
+            TABLE_RV[i] = 1634 * (i - 128);
+            TABLE_GV[i] = -833 * (i - 128);
+            TABLE_GU[i] = -400 * (i - 128);
+            TABLE_BU[i] = 2066 * (i - 128);
+        }
+        for (int i = 0; i < CLAMP_SIZE; i++) {
+            int c = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+            CLAMP_R[i] = 0xff000000 | (c << 16);
+            CLAMP_G[i] = c << 8;
+            CLAMP_B[i] = c;
+            CLAMP_R565[i] = (short) ((c >> 3) << 11);
+            CLAMP_G565[i] = (short) ((c >> 2) << 5);
+            CLAMP_B565[i] = (short) (c >> 3);
+        }
+    }
+
+    /*
+     * Convert one pixel. Same result as ReferenceYuvConverter for the same y, u and v.
+     */
+    static int toArgb(int y, int u, int v) {
+        int yy = TABLE_Y[y];
+        return CLAMP_R[(yy + TABLE_RV[v]) >> 10] | CLAMP_G[(yy + TABLE_GV[v] + TABLE_GU[u]) >> 10] | CLAMP_B[(yy + TABLE_BU[u]) >> 10];
+    }
+
+    /*
+     * Convert one pixel to RGB565. Each channel is the one of toArgb() with its low bits dropped.
+     */
+    static short toRgb565(int y, int u, int v) {
+        int yy = TABLE_Y[y];
+        return (short) (CLAMP_R565[(yy + TABLE_RV[v]) >> 10] | CLAMP_G565[(yy + TABLE_GV[v] + TABLE_GU[u]) >> 10]
+                | CLAMP_B565[(yy + TABLE_BU[u]) >> 10]);
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void decodeRows(int[] rgb, byte[] yuv420sp, int width, int height, int startRow, int endRow) {
+        final int frameSize = width * height;
+        final int[] tableY = TABLE_Y;
+        final int[] clampR = CLAMP_R;
+        final int[] clampG = CLAMP_G;
+        final int[] clampB = CLAMP_B;
+
+        for (int j = startRow, yp = startRow * width; j < endRow; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            int i = 0;
+            // Two pixels share one chroma sample.
+            for (; i + 1 < width; i += 2) {
+                int v = 0xff & yuv420sp[uvp++];
+                int u = 0xff & yuv420sp[uvp++];
+                int rv = TABLE_RV[v];
+                int guv = TABLE_GV[v] + TABLE_GU[u];
+                int bu = TABLE_BU[u];
+
+                int y = tableY[0xff & yuv420sp[yp]];
+                rgb[yp++] = clampR[(y + rv) >> 10] | clampG[(y + guv) >> 10] | clampB[(y + bu) >> 10];
+                y = tableY[0xff & yuv420sp[yp]];
+                rgb[yp++] = clampR[(y + rv) >> 10] | clampG[(y + guv) >> 10] | clampB[(y + bu) >> 10];
+            }
+            // Odd width.
+            if (i < width) {
+                int v = 0xff & yuv420sp[uvp++];
+                int u = 0xff & yuv420sp[uvp];
+                int y = tableY[0xff & yuv420sp[yp]];
+                rgb[yp++] = clampR[(y + TABLE_RV[v]) >> 10] | clampG[(y + TABLE_GV[v] + TABLE_GU[u]) >> 10] | clampB[(y + TABLE_BU[u]) >> 10];
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.yaji.viewfinder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+/*
+ * Decodes a large frame on all cores at once. The Y plane is split into a grid of overlapping tiles, and the tiles and the region of
+ * interest are decoded concurrently on the shared worker pool, each with a recognizer of its own. The first hit wins and the rest are
+ * cancelled. Tiles overlap by half of the shorter side of the frame, so a code up to that size fits whole in at least one tile and is
+ * found in a fraction of the time of the whole frame. Only if no tile finds anything is the whole frame decoded, for larger codes.
+ *
+ * A ZXing decode cannot be interrupted, so cancelled tasks still running give up at their next binarizer attempt; tasks not started yet
+ * are skipped. The frame is read until the last task has finished, which may be after decode() returns, so the caller is told separately
+ * when it may reuse it.
+ */
+public class TiledDecoder {
+    private static final String LOG_TAG = "yaji";
+
+    // Frames at least this wide are worth tiling.
+    private static final int MIN_WIDTH = 1280;
+
+    private final DecodeProfile mProfile;
+    private final QRResultCache mCache;
+    private final FormatStats mFormatStats;
+    private final BinarizerStrategy mBinarizerStrategy;
+    // Recognizers not used by any task, reused between frames.
+    private final List<QRRecognizer> mIdle = new ArrayList<QRRecognizer>();
+
+    /*
+     * Constructor. cache, stats and strategy are shared by the recognizers of the tasks, and may be null.
+     */
+    public TiledDecoder(DecodeProfile profile, QRResultCache cache, FormatStats stats, BinarizerStrategy strategy) {
+        mProfile = profile;
+        mCache = cache;
+        mFormatStats = stats;
+        mBinarizerStrategy = strategy;
+    }
+
+    /*
+     * True if tiling the frame pays off: a large frame and more than one core.
+     */
+    public static boolean isWorthwhile(YuvFormat format) {
+        return WorkerPool.getThreadCount() > 1 && format.getWidth() >= MIN_WIDTH;
+    }
+
+    /*
+     * Grid of overlapping tiles covering the frame, two tiles along each side with enough cores, otherwise along the longer side only.
+     */
+    public static List<Rect> createTiles(int width, int height) {
+        int overlap = Math.min(width, height) / 2;
+        int columns = 2;
+        int rows = (WorkerPool.getThreadCount() >= 4) ? 2 : 1;
+        if (height > width) {
+            int swap = columns;
+            columns = rows;
+            rows = swap;
+        }
+        int tileWidth = (columns == 1) ? width : (width + overlap) / 2;
+        int tileHeight = (rows == 1) ? height : (height + overlap) / 2;
+        List<Rect> tiles = new ArrayList<Rect>(columns * rows);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int left = (column == 0) ? 0 : width - tileWidth;
+                int top = (row == 0) ? 0 : height - tileHeight;
+                tiles.add(new Rect(left, top, left + tileWidth, top + tileHeight));
+            }
+        }
+        return tiles;
+    }
+
+    /*
+     * Decode the frame. region: region of interest decoded as one more task, or null. release: run once no task reads the frame any more,
+     * on any thread. Returns the first code found, or null if nothing is found within the timeout.
+     */
+    public QRResult decode(final byte[] data, final YuvFormat format, Rect region, long timeoutMillis, final Runnable release) {
+        final int width = format.getWidth();
+        final int height = format.getHeight();
+        final AtomicBoolean done = new AtomicBoolean();
+        // Tasks reading the frame, and this call.
+        final AtomicInteger readers = new AtomicInteger(1);
+
+        // The region first, the code is aimed at it, then the tiles.
+        List<Rect> areas = new ArrayList<Rect>();
+        if (region != null && !region.isEmpty()) {
+            areas.add(region);
+        }
+        areas.addAll(createTiles(width, height));
+        // One frame however many areas are decoded, the recognizers of the areas do not count it.
+        if (mFormatStats != null) {
+            mFormatStats.countFrame();
+        }
+
+        CompletionService<QRResult> service = new ExecutorCompletionService<QRResult>(WorkerPool.get());
+        List<Future<QRResult>> futures = new ArrayList<Future<QRResult>>(areas.size());
+        QRResult found = null;
+        try {
+            for (final Rect area : areas) {
+                readers.incrementAndGet();
+                try {
+                    futures.add(service.submit(new Callable<QRResult>() {
+                        public QRResult call() {
+                            try {
+                                return done.get() ? null : decodeArea(data, format, area, done);
+                            } finally {
+                                releaseFrame(readers, release);
+                            }
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    // Not queued, nobody else releases its count.
+                    releaseFrame(readers, release);
+                    throw e;
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            boolean timedOut = false;
+            for (int i = 0; i < futures.size() && found == null; i++) {
+                Future<QRResult> future = service.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    Log.d(LOG_TAG, "TiledDecoder, timeout");
+                    timedOut = true;
+                    break;
+                }
+                found = future.get();
+            }
+            if (found == null && !timedOut && deadline - System.nanoTime() > 0) {
+                // Every task is done. The code may be larger than the overlap of the tiles, try the whole frame on this thread.
+                found = decodeArea(data, format, new Rect(0, 0, width, height), null);
+            }
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "TiledDecoder.decode() failed", e);
+        } finally {
+            // Tasks not started yet return at once, running ones finish in background. They are not cancelled through their futures, a
+            // task cancelled before it starts would never release the frame.
+            done.set(true);
+            releaseFrame(readers, release);
+        }
+        return found;
+    }
+
+    /*
+     * Decode the area of the frame. cancel: flag to give up at, or null.
+     */
+    private QRResult decodeArea(byte[] data, YuvFormat format, Rect area, AtomicBoolean cancel) {
+        QRRecognizer recognizer = obtainRecognizer();
+        recognizer.setCancelFlag(cancel);
+        try {
+            PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(data, format.getYStride(), format.getHeight(), area.left, area.top,
+                    area.width(), area.height());
+            return recognizer.recognizeSameFrame(source) ? recognizer.getResult() : null;
+        } finally {
+            recognizer.setCancelFlag(null);
+            releaseRecognizer(recognizer);
+        }
+    }
+
+    private static void releaseFrame(AtomicInteger readers, Runnable release) {
+        if (readers.decrementAndGet() == 0) {
+            release.run();
+        }
+    }
+
+    private QRRecognizer obtainRecognizer() {
+        synchronized (mIdle) {
+            if (!mIdle.isEmpty()) {
+                return mIdle.remove(mIdle.size() - 1);
+            }
+        }
+        QRRecognizer recognizer = new QRRecognizer(mProfile, mFormatStats);
+        recognizer.setResultCache(mCache);
+        if (mBinarizerStrategy != null) {
+            recognizer.setBinarizerStrategy(mBinarizerStrategy);
+        }
+        return recognizer;
+    }
+
+    private void releaseRecognizer(QRRecognizer recognizer) {
+        synchronized (mIdle) {
+            mIdle.add(recognizer);
+        }
+    }
+}
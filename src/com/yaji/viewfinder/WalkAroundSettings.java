@@ -1,21 +1,27 @@
 package com.yaji.viewfinder;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import android.annotation.TargetApi;
+import android.app.AlertDialog;
 import android.app.WallpaperManager;
+import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.hardware.Camera;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
@@ -85,6 +91,19 @@ public class WalkAroundSettings extends PreferenceActivity implements SharedPref
             }
         });
 
+        // Search the codes in the saved pictures. The query is not kept.
+        Preference searchCodes = findPref(R.string.key_search_codes);
+        searchCodes.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference pref, Object newValue) {
+                String query = ((String) newValue).trim();
+                if (query.length() > 0) {
+                    searchCodes(query);
+                }
+                return false;
+            }
+        });
+
         // Link to LiveWallpaper picker.
         Intent intent = getIntent();
         String action = intent.getAction();
@@ -451,6 +470,55 @@ public class WalkAroundSettings extends PreferenceActivity implements SharedPref
         lp.setSummary(summary);
     }
 
+    /*
+     * Search the index of the saved pictures, kept up to date by the wallpaper, and list the pictures found. Reading the index is done in
+     * background.
+     */
+    private void searchCodes(final String query) {
+        String profileName = mPref.getString(getString(R.string.key_qr_profile), getString(R.string.default_qr_profile));
+        final PictureIndexer indexer = new PictureIndexer(new File(CameraUtil.DIR_SAVE_PICS), new File(getFilesDir(),
+                PictureIndexer.INDEX_FILE_NAME), DecodeProfile.get(profileName));
+        new Thread(new Runnable() {
+            public void run() {
+                final List<PictureIndexer.Code> codes = indexer.search(query);
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (!isFinishing()) {
+                            showSearchResult(query, codes);
+                        }
+                    }
+                });
+            }
+        }, "yaji-search").start();
+    }
+
+    /*
+     * List the codes found, newest pictures first. Tapping one opens its picture.
+     */
+    private void showSearchResult(String query, final List<PictureIndexer.Code> codes) {
+        if (codes.isEmpty()) {
+            Toast.makeText(this, R.string.toast_search_codes_not_found, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] items = new String[codes.size()];
+        for (int i = 0; i < items.length; i++) {
+            PictureIndexer.Code code = codes.get(i);
+            items[i] = new File(code.getPath()).getName() + "\n" + code.getText();
+        }
+        new AlertDialog.Builder(this).setTitle(getString(R.string.search_codes_result, query))
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent intent = new Intent(Intent.ACTION_VIEW);
+                        intent.setDataAndType(Uri.fromFile(new File(codes.get(which).getPath())), "image/jpeg");
+                        try {
+                            startActivity(intent);
+                        } catch (ActivityNotFoundException e) {
+                            Log.w(LOG_TAG, "showSearchResult(), no viewer", e);
+                        }
+                    }
+                }).show();
+    }
+
     /*
      * Create key.
      */
@@ -1,10 +1,18 @@
 package com.yaji.viewfinder;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
-
+import java.io.PrintWriter;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.Intent;
@@ -14,6 +22,7 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.PictureCallback;
 import android.hardware.Camera.PreviewCallback;
@@ -22,6 +31,7 @@ import android.media.ExifInterface;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.service.wallpaper.WallpaperService;
 import android.util.DisplayMetrics;
@@ -42,6 +52,35 @@ public class WalkAroundWallpaper extends WallpaperService {
     private CameraHideMethods mCameraHideMethods;
     private SharedPreferences mPref;
     private CameraUtil mCameraUtil;
+    private FramePool mFramePool;
+    private PreviewBufferRing mBufferRing;
+    private QRResultCache mQRResultCache;
+    private QRDecodeWorker mDecodeWorker;
+    private FormatStats mFormatStats;
+    private PictureIndexer mPictureIndexer;
+    private JpegWriter mJpegWriter;
+    private CaptureQueue mCaptureQueue;
+
+    // The number of preview callback buffers.
+    private static final int PREVIEW_BUFFER_COUNT = 3;
+
+    // Share of the heap the frame pool may hold at most: 1/FRAME_POOL_HEAP_DIVISOR of the memory class.
+    private static final int FRAME_POOL_HEAP_DIVISOR = 4;
+
+    // Notification id for QR codes found by continuous scanning.
+    private static final int NOTIFICATION_ID_QR = 1;
+
+    // Recognized codes kept to skip parsing them again.
+    private static final int QR_RESULT_CACHE_SIZE = 16;
+    private static final long QR_RESULT_CACHE_MAX_AGE = 10 * 60 * 1000;
+
+    // Time allowed for decoding a frame taken on a tap.
+    private static final long QR_TAP_DEADLINE = 2000;
+    // Time after a tap for which blurred or moving frames are skipped before decoding.
+    private static final long QR_TAP_SETTLE = 500;
+
+    // Half size of the zone around the display center where a single tap starts QR code recognition.
+    private static final int QR_TAP_ZONE = 100;
 
     public Engine onCreateEngine() {
         Log.d(LOG_TAG, "[in]onCreateEngine()");
@@ -53,6 +92,12 @@ public class WalkAroundWallpaper extends WallpaperService {
         Log.d(LOG_TAG, "[in]onDestroy()");
         super.onDestroy();
         stopCamera();
+        mDecodeWorker.shutdown();
+        mFormatStats.save();
+        mPictureIndexer.stop();
+        // Pictures already queued are still saved. What they give back to the pool afterwards is released.
+        mCaptureQueue.shutdown();
+        mFramePool.close();
     }
 
     @Override
@@ -60,9 +105,98 @@ public class WalkAroundWallpaper extends WallpaperService {
         Log.d(LOG_TAG, "[in]onCreate()");
         super.onCreate();
         mCameraHideMethods = new CameraHideMethods();
+        mBufferRing = new PreviewBufferRing(mCameraHideMethods, PREVIEW_BUFFER_COUNT);
         mPref = WalkAroundSettings.getPref(getApplicationContext());
         // CameraUtil
         mCameraUtil = new CameraUtil(getApplicationContext(), CameraUtil.getCurrentCameraId(getApplicationContext()));
+        // Buffers and bitmaps reused between captures. The pool sizes itself to the preview format, within a share of the heap.
+        int memoryClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+        mFramePool = new FramePool(memoryClass * 1024L * 1024L / FRAME_POOL_HEAP_DIVISOR);
+        // Recognized codes, shared by the tap and the continuous scanning. The relaunch window is set by the engine from the settings.
+        mQRResultCache = new QRResultCache(QR_RESULT_CACHE_SIZE, QR_RESULT_CACHE_MAX_AGE, 0);
+        // Which barcode formats occur here, to try them first.
+        mFormatStats = new FormatStats(getApplicationContext());
+        // Decodes preview frames off the camera callbacks. The engine configures it again from the settings.
+        DecodeProfile profile = DecodeProfile.get(mPref.getString(getString(R.string.key_qr_profile), getString(R.string.default_qr_profile)));
+        mDecodeWorker = new QRDecodeWorker(profile, mQRResultCache, mFormatStats);
+        // Codes in the saved pictures, brought up to date in background.
+        mPictureIndexer = new PictureIndexer(new File(CameraUtil.DIR_SAVE_PICS), new File(getFilesDir(), PictureIndexer.INDEX_FILE_NAME), profile);
+        mPictureIndexer.start();
+        // Writes pictures atomically, synced as configured.
+        mJpegWriter = new JpegWriter(loadPictureDurability(mPref));
+        // Saves pictures off the camera callbacks, so that the preview comes back at once.
+        mCaptureQueue = new CaptureQueue(getResources().getInteger(R.integer.default_capture_queue_capacity), getResources().getInteger(
+                R.integer.default_capture_queue_policy));
+        // Pick the fastest YUV converter for this device in background.
+        WorkerPool.get().execute(new Runnable() {
+            public void run() {
+                ImageUtil.selectFastestYuvConverter();
+            }
+        });
+    }
+
+    /*
+     * How much of a picture is synced to the storage before it appears, from the settings. One of JpegWriter.DURABILITY_*.
+     */
+    private int loadPictureDurability(SharedPreferences pref) {
+        String defaultValue = getString(R.string.default_picture_durability);
+        try {
+            return Integer.parseInt(pref.getString(getString(R.string.key_picture_durability), defaultValue));
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "loadPictureDurability(), invalid durability", e);
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    /*
+     * Dump QR code pipeline statistics: adb shell dumpsys activity service com.yaji.viewfinder/.WalkAroundWallpaper [export|reset|index|search
+     * <text>]. "export" writes them into a file in the app's files folder as well, "reset" clears them after printing. "index" updates the
+     * index of the codes in the saved pictures, "search" prints the codes in it containing the text.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        QRStageStats stats = QRStageStats.get();
+        writer.println("QR stage latency:");
+        stats.dump(writer);
+        writer.println("QR result cache: hit " + mQRResultCache.getHitCount() + ", miss " + mQRResultCache.getMissCount());
+        writer.println("QR decode worker: pending " + mDecodeWorker.getPendingCount() + ", expired " + mDecodeWorker.getExpiredCount());
+        WalkAroundEngine owner = mOwner;
+        ContinuousQRScanner scanner = (owner != null) ? owner.mQRScanner : null;
+        if (scanner != null) {
+            writer.println("QR continuous scan: dropped " + scanner.getDroppedFrames() + ", blurred or moving " + scanner.getRejectedFrames());
+        }
+        BinarizerStrategy strategy = mDecodeWorker.getBinarizerStrategy();
+        writer.println("QR binarizer: global hit " + strategy.getGlobalHitCount() + ", escalated " + strategy.getEscalationCount());
+        mFormatStats.dump(writer);
+        writer.println("Picture index: " + mPictureIndexer.getPictureCount() + " pictures, " + mPictureIndexer.getCodeCount() + " codes"
+                + (mPictureIndexer.isRunning() ? ", indexing" : ""));
+        writer.println("Capture queue: depth " + mCaptureQueue.getDepth() + "/" + mCaptureQueue.getCapacity() + ", policy "
+                + mCaptureQueue.getPolicy() + ", dropped " + mCaptureQueue.getDroppedCount() + ", rejected " + mCaptureQueue.getRejectedCount());
+
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("export".equals(arg)) {
+                    // Not the picture folder, which the media scanner and the picture index walk.
+                    File dirFile = getExternalFilesDir(null);
+                    if (dirFile == null) {
+                        dirFile = getFilesDir();
+                    }
+                    File file = new File(dirFile, "qr_stats.txt");
+                    writer.println("Export to " + file + ": " + (stats.exportToFile(file) ? "done" : "failed"));
+                } else if ("reset".equals(arg)) {
+                    stats.reset();
+                    writer.println("Reset");
+                } else if ("index".equals(arg)) {
+                    mPictureIndexer.start();
+                    writer.println("Indexing");
+                } else if ("search".equals(arg) && i + 1 < args.length) {
+                    for (PictureIndexer.Code code : mPictureIndexer.search(args[++i])) {
+                        writer.println(code.getPath() + " " + code.getFormat() + " " + code.getText());
+                    }
+                }
+            }
+        }
     }
 
     /*
@@ -111,6 +245,7 @@ public class WalkAroundWallpaper extends WallpaperService {
             // Start preview.
             try {
                 mCamera.startPreview();
+                mBufferRing.start(mCamera, CameraUtil.getPreviewYuvFormat(mCamera.getParameters()));
                 retVal = true;
             } catch (Exception e) {
                 Log.e(LOG_TAG, "startPreview() failed.", e);
@@ -140,8 +275,10 @@ public class WalkAroundWallpaper extends WallpaperService {
             int cameraId = CameraUtil.getCurrentCameraId(getApplicationContext());
             Log.d(LOG_TAG, "setCameraParameter(), cameraId: " + cameraId);
 
-            // Set preview size.
+            // Set preview size and format.
             mCameraUtil.setPreviewSizeToCamParam(params);
+            mCameraUtil.setPreviewFormatToCamParam(params);
+            mFramePool.configure(cameraId, CameraUtil.getPreviewYuvFormat(params));
 
             // Picture size
             String strSize = mPref.getString(WalkAroundSettings.createKey(cameraId, getString(R.string.key_picture_size)), null);
@@ -226,6 +363,9 @@ public class WalkAroundWallpaper extends WallpaperService {
         Log.d(LOG_TAG, "[in]stopCamera()");
         if (mCamera != null) {
             try {
+                // Decodes in flight are abandoned, their results would refer to a preview which is gone.
+                mDecodeWorker.cancelAll();
+                mBufferRing.stop();
                 mCamera.stopPreview();
                 mCamera.release();
             } catch (Exception e) {
@@ -262,6 +402,13 @@ public class WalkAroundWallpaper extends WallpaperService {
         private boolean mBootupErrorMode = false;
         private boolean mDoubleTapEnabled = false;
         private boolean mQRRecogEnabled = false;
+        private boolean mQRContinuousEnabled = false;
+        private boolean mQRMultiEnabled = false;
+        private long mQRScanInterval;
+        // Read by dump() on a binder thread.
+        private volatile ContinuousQRScanner mQRScanner;
+        private final Handler mHandler = new Handler();
+        private final FrameQuality mQRTapQuality = new FrameQuality();
         private int mDisplayCenterX;
         private int mDisplayCenterY;
 
@@ -286,6 +433,7 @@ public class WalkAroundWallpaper extends WallpaperService {
             // Load up user's settings
             setTouchEventsEnabled(true); // Always set to true.
             mDoubleTapEnabled = mPref.getBoolean(getString(R.string.key_take_picture), getResources().getBoolean(R.bool.default_camera_take_picture));
+            loadQRSettings(mPref);
 
             // Display width/height used to judge if we try to start recognition for QR code.
             DisplayMetrics metrics = new DisplayMetrics();
@@ -326,6 +474,7 @@ public class WalkAroundWallpaper extends WallpaperService {
         public void onDestroy() {
             Log.d(LOG_TAG, "[in]WalkAroundEngine::onDestroy()");
             mPref.unregisterOnSharedPreferenceChangeListener(this);
+            stopContinuousQRScan();
         }
 
         /*
@@ -363,6 +512,7 @@ public class WalkAroundWallpaper extends WallpaperService {
                             setCameraParameter();
                             mCamera.setPreviewDisplay(getSurfaceHolder());
                             startPreview();
+                            updateContinuousQRScan();
                         }
                     } catch (IOException e) {
                         mCamera.release();
@@ -521,25 +671,20 @@ public class WalkAroundWallpaper extends WallpaperService {
             if (mCamera != null) {
                 try {
                     mCamera.takePicture(null, null, new PictureCallback() {
-                        public void onPictureTaken(byte[] rawData, Camera camera) {
-                            // Save picture as a JPG file.
+                        public void onPictureTaken(final byte[] rawData, Camera camera) {
+                            // Save picture as a JPG file, in background.
                             try {
                                 if (rawData != null) {
-                                    // Directory.
-                                    File dirFile = new File(CameraUtil.DIR_SAVE_PICS);
-                                    if (!dirFile.exists()) {
-                                        dirFile.mkdirs();
-                                    }
-
                                     // Date to be used for JPG filename.
-                                    String filepath = CameraUtil.createPictureFilePath();
-                                    FileOutputStream outstream = new FileOutputStream(filepath);
-                                    BufferedOutputStream buffer = new BufferedOutputStream(outstream);
-                                    buffer.write(rawData);
-                                    buffer.close();
+                                    final String filepath = CameraUtil.createPictureFilePath();
+                                    submitCapture(new CaptureQueue.Capture() {
+                                        public void persist() {
+                                            onPictureWritten(filepath, mJpegWriter.write(filepath, rawData, null), false);
+                                        }
 
-                                    // Request MediaScanner to scan the file to be saved right now, and to add it to the media DB.
-                                    ImageUtil.scanFile(getApplicationContext(), filepath);
+                                        public void discard() {
+                                        }
+                                    });
 
                                     // Preview will be stopped after the image is taken. Therefore restart preview.
                                     startPreview();
@@ -561,47 +706,65 @@ public class WalkAroundWallpaper extends WallpaperService {
          */
         private void takePictureWithoutShutterSound() {
             if (mCamera != null) {
-                mCamera.setOneShotPreviewCallback(new PreviewCallback() {
+                mBufferRing.requestOneShot(new PreviewCallback() {
                     public void onPreviewFrame(byte[] data, Camera camera) {
                         // Stop preview so that end-user can notice that we are taking a picture.
                         mCamera.stopPreview();
 
-                        // Allocate bitmap data.
-                        Size previewSize = mCamera.getParameters().getPreviewSize();
-                        final int width = previewSize.width;
-                        final int height = previewSize.height;
-                        int[] rgb = new int[(width * height)];
-
-                        // Convert from data(YUV420) to rgb(RGB).
-                        ImageUtil.decodeYUV420SP(rgb, data, width, height);
-                        // Create bitmap to be converted to JPG.
-                        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                        bmp.setPixels(rgb, 0, width, 0, 0, width, height);
-
-                        // Directory.
-                        File dirFile = new File(CameraUtil.DIR_SAVE_PICS);
-                        if (!dirFile.exists()) {
-                            dirFile.mkdirs();
-                        }
-
+                        // Pixels are rotated upright while converting, so that apps ignoring EXIF show it correctly.
+                        final YuvFormat format = CameraUtil.getPreviewYuvFormat(mCamera.getParameters());
+                        final FrameTransform transform = mCameraUtil.createFrameTransform(getDisplayRotation(), format.getWidth(),
+                                format.getHeight(), false);
+                        // The buffer goes back to the camera, the frame is converted and saved from a copy.
+                        final byte[] frame = mFramePool.obtainFrame(data.length);
+                        System.arraycopy(data, 0, frame, 0, data.length);
                         // Date to be used for JPG filename.
-                        String filepath = CameraUtil.createPictureFilePath();
-                        ImageUtil.saveBitmapAsFile(filepath, bmp, Bitmap.CompressFormat.JPEG);
-
-                        // Add EXIF data.
-                        try {
-                            ExifInterface ei = new ExifInterface(filepath);
-                            ei.setAttribute(ExifInterface.TAG_ORIENTATION, mCameraUtil.displayRotationToExifOrientation(getDisplayRotation()) + "");
-                            ei.saveAttributes();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                        // Request MediaScanner to scan the file to be saved right now, and to add it to the media DB.
-                        ImageUtil.scanFile(getApplicationContext(), filepath);
+                        final String filepath = CameraUtil.createPictureFilePath();
+                        // RGB565 unless full colors are asked for: half the memory, and the pixels are copied instead of set one by one.
+                        final boolean fullColor = mPref.getBoolean(getString(R.string.key_capture_full_color),
+                                getResources().getBoolean(R.bool.default_capture_full_color));
+
+                        submitCapture(new CaptureQueue.Capture() {
+                            public void persist() {
+                                final int width = transform.getOutputWidth();
+                                final int height = transform.getOutputHeight();
+
+                                // Convert from data(YUV420) into a bitmap to be converted to JPG.
+                                long start = System.nanoTime();
+                                long converted;
+                                Bitmap bmp;
+                                if (fullColor) {
+                                    int[] rgb = mFramePool.obtainRgb(width * height);
+                                    ImageUtil.decodeYUV(rgb, frame, format, transform);
+                                    converted = System.nanoTime();
+                                    mFramePool.recycleFrame(frame);
+                                    bmp = mFramePool.obtainBitmap(width, height, Bitmap.Config.ARGB_8888);
+                                    bmp.setPixels(rgb, 0, width, 0, 0, width, height);
+                                    mFramePool.recycleRgb(rgb);
+                                } else {
+                                    short[] rgb565 = mFramePool.obtainRgb565(width * height);
+                                    ImageUtil.decodeYUVToRGB565(rgb565, frame, format, transform);
+                                    converted = System.nanoTime();
+                                    mFramePool.recycleFrame(frame);
+                                    bmp = mFramePool.obtainBitmap(width, height, Bitmap.Config.RGB_565);
+                                    bmp.copyPixelsFromBuffer(ShortBuffer.wrap(rgb565));
+                                    mFramePool.recycleRgb565(rgb565);
+                                }
+                                QRStageStats.get().record(QRStageStats.STAGE_CAPTURE_CONVERT, converted - start, true);
+                                QRStageStats.get().record(QRStageStats.STAGE_CAPTURE_BITMAP, System.nanoTime() - converted, true);
+
+                                // EXIF data is added before the file appears: already upright.
+                                Map<String, String> exif = new HashMap<String, String>();
+                                exif.put(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL + "");
+                                boolean saved = mJpegWriter.write(filepath, bmp, exif);
+                                mFramePool.recycleBitmap(bmp);
+                                onPictureWritten(filepath, saved, true);
+                            }
 
-                        // Inform end-user that picture has been saved.
-                        Toast.makeText(getApplicationContext(), getString(R.string.toast_picture_saved), Toast.LENGTH_SHORT).show();
+                            public void discard() {
+                                mFramePool.recycleFrame(frame);
+                            }
+                        });
 
                         // Restart preview.
                         startPreview();
@@ -612,13 +775,47 @@ public class WalkAroundWallpaper extends WallpaperService {
             }
         }
 
+        /*
+         * Queue a picture to be saved. If the queue rejects it, tell end-user that it has not been taken.
+         */
+        private void submitCapture(CaptureQueue.Capture capture) {
+            if (!mCaptureQueue.submit(capture)) {
+                Toast.makeText(getApplicationContext(), getString(R.string.toast_picture_queue_full), Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        /*
+         * Called on the capture queue thread once a picture has been written or has failed to. toastSaved: inform end-user of success too.
+         */
+        private void onPictureWritten(final String filepath, final boolean saved, final boolean toastSaved) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (saved) {
+                        // Request MediaScanner to scan the file to be saved right now, and to add it to the media DB.
+                        ImageUtil.scanFile(getApplicationContext(), filepath);
+                        // The indexer has been stopped with the service, the picture is indexed on the next start.
+                        if (!mCaptureQueue.isShutdown()) {
+                            mPictureIndexer.start();
+                        }
+
+                        // Inform end-user that picture has been saved.
+                        if (toastSaved) {
+                            Toast.makeText(getApplicationContext(), getString(R.string.toast_picture_saved), Toast.LENGTH_SHORT).show();
+                        }
+                    } else {
+                        Toast.makeText(getApplicationContext(), getString(R.string.toast_picture_save_failed), Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
+        }
+
         /*
          * Handle single tap to recognize QR code and launch the related application with recognized information.
          */
         private void handleSingleTapConfirmed(MotionEvent e) {
             if (mQRRecogEnabled) {
                 if (!isPreview()) {
-                    final int T = 100;
+                    final int T = QR_TAP_ZONE;
                     int x = (int) e.getRawX();
                     int y = (int) e.getRawY();
                     // Do only when tapping the center area of the display.
@@ -634,57 +831,191 @@ public class WalkAroundWallpaper extends WallpaperService {
          */
         private void recognizeQRCode() {
             if (mCamera != null) {
-                mCamera.setOneShotPreviewCallback(new PreviewCallback() {
-                    public void onPreviewFrame(byte[] data, Camera camera) {
-                        // mCamera should not be null, but it seems that it is null according to crash report.
-                        if (mCamera != null) {
-                            Log.d(LOG_TAG, "QR start");
-                            // Stop preview so that end-user can notice that we are taking a picture.
-                            mCamera.stopPreview();
-
-                            // Allocate bitmap data.
-                            Size previewSize = mCamera.getParameters().getPreviewSize();
-                            int width = previewSize.width;
-                            int height = previewSize.height;
-                            int[] rgb = new int[(width * height)];
-
-                            // Convert from data(YUV420) to rgb(RGB).
-                            ImageUtil.decodeYUV420SP(rgb, data, width, height);
-
-                            // Create bitmap to be converted to JPG.
-                            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                            bmp.setPixels(rgb, 0, width, 0, 0, width, height);
-
-                            // Start recognition.
-                            QRRecognizer recog = new QRRecognizer();
-                            boolean isFound = recog.recognize(bmp);
-
-                            // Launch app according to the recogniton result.
-                            if (isFound) {
-                                // Show the recognized information to end-user.
-                                String text = recog.getText();
-                                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
-
-                                // Start application.
-                                Intent intent = recog.getLaunchIntent();
-                                if (intent != null) {
-                                    startActivity(intent);
-                                }
-                            }
+                mQRTapQuality.reset();
+                requestQRFrame(SystemClock.uptimeMillis() + QR_TAP_SETTLE);
+            } else {
+                Log.w(LOG_TAG, "recognizeQRCode(), mCamera: null, (1)");
+            }
+        }
 
-                            // Restart preview.
-                            startPreview();
+        /*
+         * Decode the next preview frame, or the one after if it is blurred or moving, until settleDeadline. The phone is often still moving
+         * just after the tap, and a decode of such a frame fails after spending its whole cost.
+         */
+        private void requestQRFrame(final long settleDeadline) {
+            final long requested = System.nanoTime();
+            mBufferRing.requestOneShot(new PreviewCallback() {
+                public void onPreviewFrame(byte[] data, Camera camera) {
+                    QRStageStats.get().record(QRStageStats.STAGE_ACQUIRE, System.nanoTime() - requested, data != null);
+                    // mCamera should not be null, but it seems that it is null according to crash report.
+                    if (mCamera != null) {
+                        YuvFormat format = CameraUtil.getPreviewYuvFormat(mCamera.getParameters());
+                        Rect region = getQRRegionOfInterest(format);
+
+                        // The code is aimed at the center, so its region is what has to be sharp.
+                        long start = System.nanoTime();
+                        boolean acceptable = mQRTapQuality.measure(data, format, region);
+                        QRStageStats.get().record(QRStageStats.STAGE_QUALITY, System.nanoTime() - start, acceptable);
+                        if (!acceptable && SystemClock.uptimeMillis() < settleDeadline) {
+                            Log.d(LOG_TAG, "QR frame skipped, sharpness:" + mQRTapQuality.getSharpness() + ", motion:" + mQRTapQuality.getMotion());
+                            requestQRFrame(settleDeadline);
+                            return;
+                        }
 
-                            // For performance measurement.
-                            Log.d(LOG_TAG, "QR finished");
-                        } else {
-                            Log.w(LOG_TAG, "recognizeQRCode(), mCamera: null, (2)");
+                        Log.d(LOG_TAG, "QR start");
+                        // Hand the frame to the decode worker and return, the preview keeps running. The Y plane of the preview data
+                        // is used directly, no conversion is needed.
+                        int mode = QRDecodeWorker.MODE_SINGLE;
+                        if (mQRMultiEnabled) {
+                            mode = QRDecodeWorker.MODE_MULTIPLE;
+                        } else if (TiledDecoder.isWorthwhile(format)) {
+                            // Large frames are decoded on all cores.
+                            mode = QRDecodeWorker.MODE_TILED;
                         }
+                        mDecodeWorker.submit(new QRDecodeWorker.Job(data, format, mBufferRing, mode, region, QR_TAP_DEADLINE, mHandler,
+                                new QRDecodeWorker.Callback() {
+                                    public void onDecoded(QRDecodeWorker.Job job, List<QRResult> results) {
+                                        handleQRResults(results);
+                                    }
+                                }));
+                    } else {
+                        Log.w(LOG_TAG, "recognizeQRCode(), mCamera: null, (2)");
                     }
-                });
+                }
+            });
+        }
+
+        /*
+         * Show the codes recognized on a tap, and launch the nearest one that has something to launch.
+         */
+        private void handleQRResults(List<QRResult> results) {
+            if (!results.isEmpty()) {
+                // Show the recognized information to end-user.
+                StringBuilder sb = new StringBuilder();
+                QRResult launchResult = null;
+                for (QRResult result : results) {
+                    if (sb.length() > 0) {
+                        sb.append('\n');
+                    }
+                    sb.append(result.getText());
+                    if (launchResult == null && result.getLaunchIntent() != null) {
+                        launchResult = result;
+                    }
+                }
+                Toast.makeText(getApplicationContext(), sb.toString(), Toast.LENGTH_LONG).show();
+
+                // Start application, unless the same code has been launched just before.
+                if (launchResult != null) {
+                    if (mQRResultCache.acquireLaunch(launchResult)) {
+                        startActivity(launchResult.getLaunchIntent());
+                    } else {
+                        Log.d(LOG_TAG, "handleQRResults(), launch suppressed");
+                    }
+                }
+            }
+
+            // For performance measurement.
+            Log.d(LOG_TAG, "QR finished");
+        }
+
+        /*
+         * Region of the preview frame decoded first on a tap, the center zone of the display. It is at least the tap zone, and half of the
+         * shorter side of the display so that a code aimed at the center fits in it.
+         */
+        private Rect getQRRegionOfInterest(YuvFormat format) {
+            DisplayMetrics metrics = new DisplayMetrics();
+            ((WindowManager) getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getMetrics(metrics);
+            int half = Math.max(QR_TAP_ZONE, Math.min(metrics.widthPixels, metrics.heightPixels) / 4);
+            int centerX = metrics.widthPixels / 2;
+            int centerY = metrics.heightPixels / 2;
+            Rect zone = new Rect(centerX - half, centerY - half, centerX + half, centerY + half);
+            return mCameraUtil.mapDisplayRectToPreview(zone, getDisplayRotation(), metrics.widthPixels, metrics.heightPixels,
+                    format.getWidth(), format.getHeight());
+        }
+
+        /*
+         * Load settings for QR code recognition.
+         */
+        private void loadQRSettings(SharedPreferences pref) {
+            mQRRecogEnabled = pref.getBoolean(getString(R.string.key_qr), getResources().getBoolean(R.bool.default_camera_qr));
+            mQRContinuousEnabled = pref.getBoolean(getString(R.string.key_qr_continuous), getResources().getBoolean(R.bool.default_camera_qr_continuous));
+            mQRMultiEnabled = pref.getBoolean(getString(R.string.key_qr_multi), getResources().getBoolean(R.bool.default_camera_qr_multi));
+            try {
+                mQRScanInterval = Long.parseLong(pref.getString(getString(R.string.key_qr_scan_interval), getString(R.string.default_qr_scan_interval)));
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "loadQRSettings(), invalid scan interval", e);
+                mQRScanInterval = Long.parseLong(getString(R.string.default_qr_scan_interval));
+            }
+            // The worker keeps its readers, they are rebuilt only when the profile changes.
+            DecodeProfile profile = DecodeProfile.get(pref.getString(getString(R.string.key_qr_profile), getString(R.string.default_qr_profile)));
+            mDecodeWorker.configure(profile, mQRResultCache, mFormatStats);
+            // The pictures are indexed again for the codes of the new profile.
+            if (mPictureIndexer.setProfile(profile)) {
+                mPictureIndexer.start();
+            }
+            try {
+                mQRResultCache.setRelaunchWindow(Long.parseLong(pref.getString(getString(R.string.key_qr_relaunch_window),
+                        getString(R.string.default_qr_relaunch_window))));
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "loadQRSettings(), invalid relaunch window", e);
+            }
+        }
+
+        /*
+         * Start or stop continuous QR code scanning according to the settings.
+         * Only the engine owning the camera feeds the preview frames to its scanner.
+         */
+        private void updateContinuousQRScan() {
+            if (mQRRecogEnabled && mQRContinuousEnabled && !isPreview() && mOwner == this) {
+                if (mQRScanner == null) {
+                    mQRScanner = new ContinuousQRScanner(mHandler, new ContinuousQRScanner.Listener() {
+                        public void onQRCodeFound(QRResult result) {
+                            notifyQRCode(result);
+                        }
+                    }, mDecodeWorker, mQRScanInterval);
+                } else {
+                    mQRScanner.setInterval(mQRScanInterval);
+                }
+                mBufferRing.setFrameListener(mQRScanner);
             } else {
-                Log.w(LOG_TAG, "recognizeQRCode(), mCamera: null, (1)");
+                stopContinuousQRScan();
+            }
+        }
+
+        /*
+         * Stop continuous QR code scanning.
+         */
+        private void stopContinuousQRScan() {
+            if (mOwner == this) {
+                mBufferRing.setFrameListener(null);
+            }
+            if (mQRScanner != null) {
+                mQRScanner.shutdown();
+                mQRScanner = null;
+            }
+        }
+
+        /*
+         * Show a QR code found in background. Tapping the notification launches the related application.
+         * The same code is not shown again within the relaunch window.
+         */
+        @SuppressWarnings("deprecation")
+        private void notifyQRCode(QRResult result) {
+            if (!mQRResultCache.acquireLaunch(result)) {
+                return;
+            }
+            String text = result.getText();
+            Intent launchIntent = result.getLaunchIntent();
+            if (launchIntent == null) {
+                // Nothing to launch, just show the text.
+                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_LONG).show();
+                return;
             }
+            PendingIntent contentIntent = PendingIntent.getActivity(getApplicationContext(), 0, launchIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+            Notification notification = new Notification(R.drawable.ic_launcher_wallpaper, text, System.currentTimeMillis());
+            notification.flags |= Notification.FLAG_AUTO_CANCEL;
+            notification.setLatestEventInfo(getApplicationContext(), getString(R.string.notification_qr_found), text, contentIntent);
+            ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID_QR, notification);
         }
 
         /*
@@ -723,7 +1054,13 @@ public class WalkAroundWallpaper extends WallpaperService {
             if (key != null && key.equals(getString(R.string.key_take_picture))) {
                 mDoubleTapEnabled = sharedPreferences.getBoolean(getString(R.string.key_take_picture),
                         getResources().getBoolean(R.bool.default_camera_shutter_sound));
-                mQRRecogEnabled = sharedPreferences.getBoolean(getString(R.string.key_qr), getResources().getBoolean(R.bool.default_camera_qr));
+            } else if (key != null && key.equals(getString(R.string.key_picture_durability))) {
+                mJpegWriter.setDurability(loadPictureDurability(sharedPreferences));
+            } else if (key != null && (key.equals(getString(R.string.key_qr)) || key.equals(getString(R.string.key_qr_continuous))
+                    || key.equals(getString(R.string.key_qr_scan_interval)) || key.equals(getString(R.string.key_qr_profile))
+                    || key.equals(getString(R.string.key_qr_relaunch_window)) || key.equals(getString(R.string.key_qr_multi)))) {
+                loadQRSettings(sharedPreferences);
+                updateContinuousQRScan();
             }
         }
 
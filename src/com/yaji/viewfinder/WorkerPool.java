@@ -0,0 +1,40 @@
+package com.yaji.viewfinder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Process-wide pool of worker threads shared by CPU bound image work (frame conversion etc).
+ */
+public class WorkerPool {
+    private static ExecutorService sExecutor;
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /*
+     * Get the shared executor. Threads are created lazily, one per CPU core.
+     */
+    public static synchronized ExecutorService get() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "yaji-worker-" + mCount.incrementAndGet());
+                    // Do not keep the process alive only for these threads.
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /*
+     * The number of threads in the shared executor.
+     */
+    public static int getThreadCount() {
+        return THREAD_COUNT;
+    }
+}
@@ -0,0 +1,17 @@
+package com.yaji.viewfinder;
+
+/*
+ * Converter from YUV420SP (NV21) preview data to ARGB pixels. Implementations must produce exactly the same pixels as ReferenceYuvConverter.
+ */
+public interface YuvConverter {
+    /*
+     * Name of this backend, used to select it at runtime.
+     */
+    String getName();
+
+    /*
+     * Convert rows [startRow, endRow) of the frame. startRow must be even. Must be safe to be called from several threads at once for
+     * different row ranges.
+     */
+    void decodeRows(int[] rgb, byte[] yuv420sp, int width, int height, int startRow, int endRow);
+}
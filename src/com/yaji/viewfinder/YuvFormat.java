@@ -0,0 +1,123 @@
+package com.yaji.viewfinder;
+
+import android.graphics.ImageFormat;
+
+/*
+ * Memory layout of a 4:2:0 preview frame: NV21 (semi-planar) or YV12 (planar), the two formats android.hardware.Camera can deliver.
+ * Chroma sample of pixel (x, y) is at offset + (y / 2) * chromaRowStride + (x / 2) * chromaPixelStride for each of U and V.
+ */
+public class YuvFormat {
+    // Camera.Parameters formats.
+    public static final int NV21 = ImageFormat.NV21;
+    public static final int YV12 = ImageFormat.YV12;
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mYStride;
+    private final int mChromaRowStride;
+    private final int mChromaPixelStride;
+    private final int mUOffset;
+    private final int mVOffset;
+    private final int mFrameSize;
+
+    private YuvFormat(int format, int width, int height, int yStride, int chromaRowStride, int chromaPixelStride, int uOffset, int vOffset,
+            int frameSize) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mYStride = yStride;
+        mChromaRowStride = chromaRowStride;
+        mChromaPixelStride = chromaPixelStride;
+        mUOffset = uOffset;
+        mVOffset = vOffset;
+        mFrameSize = frameSize;
+    }
+
+    /*
+     * Layout of the given format and preview size. Throws IllegalArgumentException if the format is not supported.
+     */
+    public static YuvFormat create(int format, int width, int height) {
+        final int chromaHeight = (height + 1) / 2;
+        if (format == NV21) {
+            // Y plane, then interleaved chroma, V first.
+            int ySize = width * height;
+            int chromaRowStride = (width + 1) & ~1;
+            return new YuvFormat(format, width, height, width, chromaRowStride, 2, ySize + 1, ySize, ySize + chromaRowStride * chromaHeight);
+        } else if (format == YV12) {
+            // Y plane, then V plane, then U plane. Every row is aligned to 16 bytes. See ImageFormat.YV12.
+            int yStride = align16(width);
+            int chromaRowStride = align16(yStride / 2);
+            int ySize = yStride * height;
+            int chromaSize = chromaRowStride * (height / 2);
+            return new YuvFormat(format, width, height, yStride, chromaRowStride, 1, ySize + chromaSize, ySize, ySize + 2 * chromaSize);
+        }
+        throw new IllegalArgumentException("Unsupported preview format: " + format);
+    }
+
+    /*
+     * Check if create() supports the format.
+     */
+    public static boolean isSupported(int format) {
+        return format == NV21 || format == YV12;
+    }
+
+    private static int align16(int value) {
+        return (value + 15) & ~15;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /*
+     * Bytes between two rows of the Y plane.
+     */
+    public int getYStride() {
+        return mYStride;
+    }
+
+    /*
+     * Bytes between two rows of a chroma plane.
+     */
+    public int getChromaRowStride() {
+        return mChromaRowStride;
+    }
+
+    /*
+     * Bytes between two horizontally adjacent samples of a chroma plane. 2 for semi-planar, 1 for planar.
+     */
+    public int getChromaPixelStride() {
+        return mChromaPixelStride;
+    }
+
+    public int getUOffset() {
+        return mUOffset;
+    }
+
+    public int getVOffset() {
+        return mVOffset;
+    }
+
+    /*
+     * Size of a whole frame in bytes.
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /*
+     * True if the frame is laid out exactly as the YuvConverter backends expect.
+     */
+    public boolean isPackedNV21() {
+        return mFormat == NV21 && (mWidth & 1) == 0;
+    }
+}
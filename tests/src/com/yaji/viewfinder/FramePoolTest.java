@@ -0,0 +1,95 @@
+package com.yaji.viewfinder;
+
+import android.graphics.Bitmap;
+
+import junit.framework.TestCase;
+
+/*
+ * Sizing of the frame pool: what a capture works with must be kept, and bitmaps before buffers when the heap share is short.
+ */
+public class FramePoolTest extends TestCase {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    public void testBudgetFitsOneFullColorCapture() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, WIDTH, HEIGHT);
+        FramePool pool = new FramePool(Long.MAX_VALUE);
+        pool.configure(0, format);
+        assertEquals(FramePool.getWorkingSetBytes(format), pool.getBudgetBytes());
+
+        // The order of the silent capture: the frame goes back first, then the RGB buffer, then the bitmap.
+        byte[] frame = pool.obtainFrame(format.getFrameSize());
+        int[] rgb = pool.obtainRgb(WIDTH * HEIGHT);
+        Bitmap bmp = pool.obtainBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        pool.recycleFrame(frame);
+        pool.recycleRgb(rgb);
+        pool.recycleBitmap(bmp);
+        assertEquals(pool.getBudgetBytes(), pool.getPooledBytes());
+
+        assertSame(frame, pool.obtainFrame(format.getFrameSize()));
+        assertSame(rgb, pool.obtainRgb(WIDTH * HEIGHT));
+        assertSame(bmp, pool.obtainBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    public void testBudgetCappedByHeapShare() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, WIDTH, HEIGHT);
+        FramePool pool = new FramePool(12L * 1024 * 1024);
+        pool.configure(0, format);
+        assertEquals(12L * 1024 * 1024, pool.getBudgetBytes());
+    }
+
+    public void testBitmapEvictsBuffers() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, WIDTH, HEIGHT);
+        // Room for the frame and the bitmap, not for the RGB buffer besides.
+        FramePool pool = new FramePool(format.getFrameSize() + 4L * WIDTH * HEIGHT);
+        pool.configure(0, format);
+        byte[] frame = pool.obtainFrame(format.getFrameSize());
+        int[] rgb = pool.obtainRgb(WIDTH * HEIGHT);
+        Bitmap bmp = pool.obtainBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        pool.recycleFrame(frame);
+        pool.recycleRgb(rgb);
+        pool.recycleBitmap(bmp);
+
+        assertFalse(bmp.isRecycled());
+        assertSame(bmp, pool.obtainBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        assertSame(frame, pool.obtainFrame(format.getFrameSize()));
+        assertNotSame(rgb, pool.obtainRgb(WIDTH * HEIGHT));
+    }
+
+    public void testNothingPooledAfterClose() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, WIDTH, HEIGHT);
+        FramePool pool = new FramePool(Long.MAX_VALUE);
+        pool.configure(0, format);
+        // A capture still being saved when the pool is closed.
+        byte[] frame = pool.obtainFrame(format.getFrameSize());
+        Bitmap bmp = pool.obtainBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        pool.close();
+        pool.recycleFrame(frame);
+        pool.recycleBitmap(bmp);
+
+        assertTrue(bmp.isRecycled());
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(frame, pool.obtainFrame(format.getFrameSize()));
+    }
+
+    public void testOtherSizesNotPooled() {
+        FramePool pool = new FramePool(Long.MAX_VALUE);
+        pool.configure(0, YuvFormat.create(YuvFormat.NV21, 640, 480));
+        pool.recycleRgb(new int[320 * 240]);
+        pool.recycleFrame(new byte[100]);
+        Bitmap bmp = Bitmap.createBitmap(320, 240, Bitmap.Config.ARGB_8888);
+        pool.recycleBitmap(bmp);
+        assertEquals(0, pool.getPooledBytes());
+        assertTrue(bmp.isRecycled());
+    }
+
+    public void testReconfigureDropsEverything() {
+        FramePool pool = new FramePool(Long.MAX_VALUE);
+        pool.configure(0, YuvFormat.create(YuvFormat.NV21, 640, 480));
+        pool.recycleRgb(new int[640 * 480]);
+        assertTrue(pool.getPooledBytes() > 0);
+        pool.configure(1, YuvFormat.create(YuvFormat.NV21, 640, 480));
+        assertEquals(0, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,132 @@
+package com.yaji.viewfinder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/*
+ * The fused crop, rotate and mirror conversion must place every pixel where converting the whole frame and then cropping, rotating
+ * clockwise and mirroring would.
+ */
+public class FrameTransformTest extends TestCase {
+    private static final long SEED = 20130718L;
+
+    public void testOutputSize() {
+        assertEquals(40, new FrameTransform(0, 0, 40, 30, 0, false).getOutputWidth());
+        assertEquals(30, new FrameTransform(0, 0, 40, 30, 0, false).getOutputHeight());
+        assertEquals(30, new FrameTransform(0, 0, 40, 30, 90, false).getOutputWidth());
+        assertEquals(40, new FrameTransform(0, 0, 40, 30, 90, false).getOutputHeight());
+        assertEquals(40, new FrameTransform(0, 0, 40, 30, 180, true).getOutputWidth());
+        assertEquals(30, new FrameTransform(0, 0, 40, 30, 270, true).getOutputWidth());
+    }
+
+    public void testRejectsInvalidArguments() {
+        try {
+            new FrameTransform(0, 0, 40, 30, 45, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            new FrameTransform(-1, 0, 40, 30, 0, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            ImageUtil.decodeYUV420SP(new int[40 * 30], new byte[32 * 32 * 3 / 2], 32, 32, new FrameTransform(0, 0, 40, 30, 0, false));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testRotationOfOnePixel() {
+        // The top left pixel of the crop, white on black, goes to the corner the rotation brings it to.
+        final int width = 8;
+        final int height = 6;
+        byte[] yuv = new byte[width * height * 3 / 2];
+        Arrays.fill(yuv, width * height, yuv.length, (byte) 128);
+        yuv[0] = (byte) 255;
+        int[][] corners = { { 0, 0 }, { height - 1, 0 }, { width - 1, height - 1 }, { 0, width - 1 } };
+        for (int r = 0; r < 4; r++) {
+            FrameTransform transform = new FrameTransform(width, height, r * 90, false);
+            int outWidth = transform.getOutputWidth();
+            int[] rgb = new int[width * height];
+            ImageUtil.decodeYUV420SP(rgb, yuv, width, height, transform);
+            int x = corners[r][0];
+            int y = corners[r][1];
+            assertEquals("rotation " + r * 90, 0xffffffff, rgb[y * outWidth + x]);
+
+            transform = new FrameTransform(width, height, r * 90, true);
+            ImageUtil.decodeYUV420SP(rgb, yuv, width, height, transform);
+            assertEquals("mirrored rotation " + r * 90, 0xffffffff, rgb[y * outWidth + outWidth - 1 - x]);
+        }
+    }
+
+    public void testMatchesConvertThenTransform() {
+        final int width = 64;
+        final int height = 48;
+        Random random = new Random(SEED);
+        byte[] yuv = YuvConverterTest.createFrame(width, height, random);
+        int[] whole = new int[width * height];
+        ImageUtil.decodeYUV420SP(whole, yuv, width, height, new FrameTransform(width, height, 0, false));
+
+        // Odd crop origins and sizes included, their chroma is shared with the pixels left of or above the crop.
+        int[][] crops = { { 0, 0, width, height }, { 5, 3, 31, 17 }, { 10, 8, 2, 2 }, { 1, 1, 63, 47 } };
+        for (int[] crop : crops) {
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                for (int m = 0; m < 2; m++) {
+                    FrameTransform transform = new FrameTransform(crop[0], crop[1], crop[2], crop[3], rotation, m == 1);
+                    int[] actual = new int[crop[2] * crop[3]];
+                    ImageUtil.decodeYUV420SP(actual, yuv, width, height, transform);
+                    int[] expected = transform(whole, width, transform);
+                    for (int i = 0; i < expected.length; i++) {
+                        if (expected[i] != actual[i]) {
+                            fail("crop " + crop[0] + "," + crop[1] + " " + crop[2] + "x" + crop[3] + " rotation " + rotation
+                                    + " mirror " + (m == 1) + " at " + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Crop, rotate clockwise, then mirror, one step at a time.
+     */
+    private static int[] transform(int[] whole, int width, FrameTransform transform) {
+        int w = transform.getCropWidth();
+        int h = transform.getCropHeight();
+        int[] image = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image[y * w + x] = whole[(transform.getCropTop() + y) * width + transform.getCropLeft() + x];
+            }
+        }
+        for (int r = 0; r < transform.getRotation(); r += 90) {
+            int[] rotated = new int[w * h];
+            // Clockwise: (x, y) goes to (h - 1 - y, x) in an image h wide.
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    rotated[x * h + h - 1 - y] = image[y * w + x];
+                }
+            }
+            image = rotated;
+            int t = w;
+            w = h;
+            h = t;
+        }
+        if (transform.isMirror()) {
+            int[] mirrored = new int[w * h];
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    mirrored[y * w + w - 1 - x] = image[y * w + x];
+                }
+            }
+            image = mirrored;
+        }
+        return image;
+    }
+}
@@ -0,0 +1,64 @@
+package com.yaji.viewfinder;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/*
+ * Luma downscaling, against a straightforward average of each block.
+ */
+public class ImageUtilTest extends TestCase {
+    private static final long SEED = 20130718L;
+
+    public void testDownscaleLumaAveragesBlocks() {
+        final int stride = 100;
+        final int rows = 70;
+        byte[] data = new byte[stride * rows];
+        new Random(SEED).nextBytes(data);
+        // A window away from the origin, whose size is not a multiple of the factor.
+        final int left = 3;
+        final int top = 5;
+        final int width = 91;
+        final int height = 61;
+        for (int factor = 2; factor <= 8; factor *= 2) {
+            int outWidth = width / factor;
+            int outHeight = height / factor;
+            byte[] out = new byte[outWidth * outHeight];
+            ImageUtil.downscaleLuma(data, stride, left, top, width, height, factor, out);
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    int sum = 0;
+                    for (int y = 0; y < factor; y++) {
+                        for (int x = 0; x < factor; x++) {
+                            sum += data[(top + oy * factor + y) * stride + left + ox * factor + x] & 0xff;
+                        }
+                    }
+                    int expected = Math.round(sum / (float) (factor * factor));
+                    assertEquals("factor " + factor + " at " + ox + "," + oy, expected, out[oy * outWidth + ox] & 0xff);
+                }
+            }
+        }
+    }
+
+    public void testDownscaleLumaKeepsExtremes() {
+        byte[] data = new byte[16 * 16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i % 16 < 8) ? 0 : 255);
+        }
+        byte[] out = new byte[2 * 2];
+        ImageUtil.downscaleLuma(data, 16, 0, 0, 16, 16, 8, out);
+        assertEquals(0, out[0] & 0xff);
+        assertEquals(255, out[1] & 0xff);
+        assertEquals(0, out[2] & 0xff);
+        assertEquals(255, out[3] & 0xff);
+    }
+
+    public void testDownscaleLumaRejectsOtherFactors() {
+        try {
+            ImageUtil.downscaleLuma(new byte[9], 3, 0, 0, 3, 3, 3, new byte[1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.yaji.viewfinder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import junit.framework.TestCase;
+
+/*
+ * The Y plane view must give the same luminance as the plane itself, through row strides and crops, and codes must be decoded from it.
+ */
+public class PlanarYUVLuminanceSourceTest extends TestCase {
+    private static final long SEED = 20130718L;
+
+    public void testRowsAndMatrixOfCrop() {
+        // YV12 rows are padded, the view must skip the padding.
+        YuvFormat format = YuvFormat.create(YuvFormat.YV12, 100, 50);
+        byte[] data = new byte[format.getFrameSize()];
+        new Random(SEED).nextBytes(data);
+        PlanarYUVLuminanceSource whole = new PlanarYUVLuminanceSource(data, format);
+        assertEquals(100, whole.getWidth());
+        assertEquals(50, whole.getHeight());
+
+        int left = 7;
+        int top = 11;
+        int width = 60;
+        int height = 30;
+        LuminanceSource crop = whole.crop(left, top, width, height);
+        byte[] matrix = crop.getMatrix();
+        byte[] row = null;
+        for (int y = 0; y < height; y++) {
+            row = crop.getRow(y, row);
+            for (int x = 0; x < width; x++) {
+                byte expected = data[(top + y) * format.getYStride() + left + x];
+                assertEquals("row " + y + " at " + x, expected, row[x]);
+                assertEquals("matrix " + y + " at " + x, expected, matrix[y * width + x]);
+            }
+        }
+    }
+
+    public void testMatrixOfWholePlaneIsTheFrame() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, 64, 48);
+        byte[] data = YuvConverterTest.createFrame(64, 48, new Random(SEED));
+        byte[] matrix = new PlanarYUVLuminanceSource(data, format).getMatrix();
+        // Only the Y plane counts, the matrix may be the frame itself.
+        for (int i = 0; i < 64 * 48; i++) {
+            assertEquals(data[i], matrix[i]);
+        }
+    }
+
+    public void testRejectsCropOutsideFrame() {
+        try {
+            new PlanarYUVLuminanceSource(new byte[64 * 48 * 3 / 2], 64, 48, 10, 0, 60, 48);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testDecodesFromYPlane() throws WriterException {
+        final String text = "http://example.com/";
+        for (int format : new int[] { YuvFormat.NV21, YuvFormat.YV12 }) {
+            YuvFormat layout = YuvFormat.create(format, 320, 240);
+            byte[] data = createCodeFrame(layout, text, 4, 160, 120, new Random(SEED));
+            QRRecognizer recognizer = new QRRecognizer();
+            recognizer.setRecordStats(false);
+            assertTrue("format " + format, recognizer.recognize(data, layout));
+            assertEquals(text, recognizer.getText());
+        }
+    }
+
+    /*
+     * Frame of the given layout with a QR code of the text centered at (centerX, centerY), module pixels per module, dark on a light noisy
+     * background. Chroma is neutral.
+     */
+    static byte[] createCodeFrame(YuvFormat format, String text, int module, int centerX, int centerY, Random random) throws WriterException {
+        BitMatrix code = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0);
+        byte[] data = new byte[format.getFrameSize()];
+        Arrays.fill(data, (byte) 128);
+        int stride = format.getYStride();
+        for (int y = 0; y < format.getHeight(); y++) {
+            for (int x = 0; x < format.getWidth(); x++) {
+                data[y * stride + x] = (byte) (196 + random.nextInt(9));
+            }
+        }
+        int size = code.getWidth() * module;
+        int left = centerX - size / 2;
+        int top = centerY - size / 2;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (code.get(x / module, y / module)) {
+                    data[(top + y) * stride + left + x] = (byte) (36 + random.nextInt(9));
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,109 @@
+package com.yaji.viewfinder;
+
+import java.util.Random;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import junit.framework.TestCase;
+
+/*
+ * The coarse-to-fine cascade must not lose codes the full decode finds: the candidate finder must see codes of the module sizes it is made
+ * for, and smaller ones must still be found within FULL_DECODE_INTERVAL frames.
+ */
+public class QRCandidateFinderTest extends TestCase {
+    private static final long SEED = 20130718L;
+    private static final int[][] SIZES = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+    // Version 1, 4 and 3 codes.
+    private static final String[] TEXTS = { "http://example.com/",
+            "http://example.com/a/very/long/path/for/a/denser/code?q=1234567890abcdef",
+            "WIFI:S:mynetwork;T:WPA;P:secretpassword1234567890;;" };
+    // Smallest module the finder is expected to see, in frame pixels.
+    private static final int MIN_FINDER_MODULE = 3;
+    private static final int MAX_MODULE = 8;
+
+    public void testFinderSeesCodesOfItsModuleSizes() throws WriterException {
+        Random random = new Random(SEED);
+        QRCandidateFinder finder = new QRCandidateFinder();
+        for (int[] size : SIZES) {
+            YuvFormat format = YuvFormat.create(YuvFormat.NV21, size[0], size[1]);
+            for (String text : TEXTS) {
+                for (int module = MIN_FINDER_MODULE; module <= MAX_MODULE; module++) {
+                    if (!fits(format, text, module)) {
+                        break;
+                    }
+                    // Off the downsampling grid.
+                    byte[] data = PlanarYUVLuminanceSourceTest.createCodeFrame(format, text, module, size[0] / 2 + 1, size[1] / 2 + 1,
+                            random);
+                    int count = finder.find(data, format.getYStride(), 0, 0, size[0], size[1]);
+                    assertTrue(size[0] + "x" + size[1] + " \"" + text + "\" module " + module, count >= 3);
+                }
+            }
+        }
+    }
+
+    public void testCascadeFindsWhatFullDecodeFinds() throws WriterException {
+        Random random = new Random(SEED);
+        int fullHits = 0;
+        int cascadeHits = 0;
+        for (int[] size : SIZES) {
+            YuvFormat format = YuvFormat.create(YuvFormat.NV21, size[0], size[1]);
+            for (String text : TEXTS) {
+                for (int module = 1; module <= MAX_MODULE; module++) {
+                    if (!fits(format, text, module)) {
+                        break;
+                    }
+                    byte[] data = PlanarYUVLuminanceSourceTest.createCodeFrame(format, text, module, size[0] / 2 + 1, size[1] / 2 + 1,
+                            random);
+                    if (!createRecognizer().recognize(data, format)) {
+                        continue;
+                    }
+                    fullHits++;
+                    // The same view for as many frames as it may take.
+                    QRRecognizer recognizer = createRecognizer();
+                    boolean found = false;
+                    for (int i = 0; i < QRRecognizer.FULL_DECODE_INTERVAL && !found; i++) {
+                        found = recognizer.recognizeCoarseToFine(data, format);
+                    }
+                    assertTrue(size[0] + "x" + size[1] + " \"" + text + "\" module " + module, found);
+                    assertEquals(text, recognizer.getText());
+                    cascadeHits++;
+                }
+            }
+        }
+        assertTrue(fullHits > 0);
+        assertEquals(fullHits, cascadeHits);
+    }
+
+    public void testEmptyFramesRejected() {
+        // Smooth shading and sensor noise, no code.
+        final int width = 640;
+        final int height = 480;
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, width, height);
+        byte[] data = new byte[format.getFrameSize()];
+        Random random = new Random(SEED);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (64 + x / 8 + y / 4 + random.nextInt(8));
+            }
+        }
+        assertEquals(0, new QRCandidateFinder().find(data, width, 0, 0, width, height));
+
+        // Nothing found either by the rejections or by the periodic whole frame decode.
+        QRRecognizer recognizer = createRecognizer();
+        for (int i = 0; i < QRRecognizer.FULL_DECODE_INTERVAL; i++) {
+            assertFalse(recognizer.recognizeCoarseToFine(data, format));
+        }
+    }
+
+    private static QRRecognizer createRecognizer() {
+        QRRecognizer recognizer = new QRRecognizer();
+        recognizer.setRecordStats(false);
+        return recognizer;
+    }
+
+    private static boolean fits(YuvFormat format, String text, int module) throws WriterException {
+        return new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, 0, 0).getWidth() * module < format.getHeight();
+    }
+}
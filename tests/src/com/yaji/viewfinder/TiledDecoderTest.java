@@ -0,0 +1,85 @@
+package com.yaji.viewfinder;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Rect;
+
+import com.google.zxing.WriterException;
+
+import junit.framework.TestCase;
+
+/*
+ * Tiles must cover the frame, and any code up to the overlap must fit whole in one of them, so that it is found without the whole frame.
+ */
+public class TiledDecoderTest extends TestCase {
+    private static final int[][] SIZES = { { 1280, 720 }, { 1920, 1080 }, { 720, 1280 }, { 1281, 721 } };
+
+    public void testTilesCoverFrame() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            List<Rect> tiles = TiledDecoder.createTiles(width, height);
+            assertTrue(tiles.size() >= 2);
+            for (Rect tile : tiles) {
+                assertTrue(tile.toString(), tile.left >= 0 && tile.top >= 0 && tile.right <= width && tile.bottom <= height);
+            }
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    boolean covered = false;
+                    for (int i = 0; i < tiles.size() && !covered; i++) {
+                        covered = tiles.get(i).contains(x, y);
+                    }
+                    if (!covered) {
+                        fail(width + "x" + height + ": " + x + "," + y + " not covered");
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSquaresUpToOverlapFitInOneTile() {
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            int overlap = Math.min(width, height) / 2;
+            List<Rect> tiles = TiledDecoder.createTiles(width, height);
+            // Every position of a square the size of the overlap.
+            for (int top = 0; top + overlap <= height; top++) {
+                for (int left = 0; left + overlap <= width; left++) {
+                    boolean fits = false;
+                    for (int i = 0; i < tiles.size() && !fits; i++) {
+                        fits = tiles.get(i).contains(new Rect(left, top, left + overlap, top + overlap));
+                    }
+                    if (!fits) {
+                        fail(width + "x" + height + ": square at " + left + "," + top + " fits in no tile");
+                    }
+                }
+            }
+        }
+    }
+
+    public void testDecodesCodeInCornerAndReleasesOnce() throws WriterException, InterruptedException {
+        final String text = "http://example.com/";
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, 1280, 720);
+        byte[] data = PlanarYUVLuminanceSourceTest.createCodeFrame(format, text, 4, 1100, 560, new Random(20130718L));
+        final AtomicInteger released = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        TiledDecoder decoder = new TiledDecoder(DecodeProfile.QR, null, null, null);
+        QRResult result = decoder.decode(data, format, null, 5000, new Runnable() {
+            public void run() {
+                released.incrementAndGet();
+                latch.countDown();
+            }
+        });
+        assertNotNull(result);
+        assertEquals(text, result.getText());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // Tasks still running when decode() returned release nothing more.
+        Thread.sleep(100);
+        assertEquals(1, released.get());
+    }
+}
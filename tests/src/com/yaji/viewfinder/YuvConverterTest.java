@@ -0,0 +1,118 @@
+package com.yaji.viewfinder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/*
+ * Every converter backend and the stripe-parallel conversion must give exactly the pixels of ReferenceYuvConverter.
+ */
+public class YuvConverterTest extends TestCase {
+    private static final long SEED = 20130718L;
+
+    public void testTableMatchesReference() {
+        // Odd sizes included, the last column and row have a chroma sample of their own.
+        int[][] sizes = { { 2, 2 }, { 3, 3 }, { 64, 48 }, { 33, 17 }, { 176, 144 }, { 321, 241 } };
+        Random random = new Random(SEED);
+        YuvConverter reference = new ReferenceYuvConverter();
+        YuvConverter table = new TableYuvConverter();
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = createFrame(width, height, random);
+            int[] expected = new int[width * height];
+            int[] actual = new int[width * height];
+            reference.decodeRows(expected, yuv, width, height, 0, height);
+            table.decodeRows(actual, yuv, width, height, 0, height);
+            assertTrue("size " + width + "x" + height, Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testTableMatchesReferenceOnAllChroma() {
+        // Every (u, v) pair once, with the darkest and the brightest luma and two in between.
+        final int width = 512;
+        final int height = 512;
+        byte[] yuv = new byte[width * height * 3 / 2];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                yuv[j * width + i] = (byte) new int[] { 0, 16, 128, 255 }[(i & 1) + 2 * (j & 1)];
+            }
+        }
+        for (int j = 0; j < height / 2; j++) {
+            for (int i = 0; i < width / 2; i++) {
+                yuv[width * height + j * width + i * 2] = (byte) j;
+                yuv[width * height + j * width + i * 2 + 1] = (byte) i;
+            }
+        }
+        int[] expected = new int[width * height];
+        int[] actual = new int[width * height];
+        new ReferenceYuvConverter().decodeRows(expected, yuv, width, height, 0, height);
+        new TableYuvConverter().decodeRows(actual, yuv, width, height, 0, height);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testRowRangesMatchWholeFrame() {
+        final int width = 176;
+        final int height = 144;
+        byte[] yuv = createFrame(width, height, new Random(SEED));
+        for (YuvConverter converter : ImageUtil.getYuvConverters()) {
+            int[] whole = new int[width * height];
+            int[] rows = new int[width * height];
+            converter.decodeRows(whole, yuv, width, height, 0, height);
+            for (int start = 0; start < height; start += 10) {
+                converter.decodeRows(rows, yuv, width, height, start, Math.min(start + 10, height));
+            }
+            assertTrue(converter.getName(), Arrays.equals(whole, rows));
+        }
+    }
+
+    public void testParallelMatchesSerial() {
+        // Large enough to be split into stripes when there is more than one core.
+        int[][] sizes = { { 1280, 720 }, { 1920, 1080 }, { 1282, 722 } };
+        Random random = new Random(SEED);
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = createFrame(width, height, random);
+            int[] expected = new int[width * height];
+            int[] actual = new int[width * height];
+            new ReferenceYuvConverter().decodeRows(expected, yuv, width, height, 0, height);
+            ImageUtil.decodeYUV420SPParallel(actual, yuv, width, height);
+            assertTrue("size " + width + "x" + height, Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testVerifyAcceptsEveryBackend() {
+        for (YuvConverter converter : ImageUtil.getYuvConverters()) {
+            assertTrue(converter.getName(), ImageUtil.verifyYuvConverter(converter));
+        }
+    }
+
+    public void testRgb565MatchesArgb() {
+        // Each RGB565 channel must be the ARGB one with its low bits dropped, through the same crop and rotation.
+        final int width = 64;
+        final int height = 48;
+        byte[] yuv = createFrame(width, height, new Random(SEED));
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, width, height);
+        FrameTransform transform = new FrameTransform(3, 5, 41, 29, 90, true);
+        int[] argb = new int[41 * 29];
+        short[] rgb565 = new short[41 * 29];
+        ImageUtil.decodeYUV(argb, yuv, format, transform);
+        ImageUtil.decodeYUVToRGB565(rgb565, yuv, format, transform);
+        for (int i = 0; i < argb.length; i++) {
+            int c = argb[i];
+            int expected = ((c >> 8) & 0xf800) | ((c >> 5) & 0x07e0) | ((c >> 3) & 0x001f);
+            assertEquals("pixel " + i, expected, rgb565[i] & 0xffff);
+        }
+    }
+
+    /*
+     * Random NV21 frame, chroma rows of the odd sizes included.
+     */
+    static byte[] createFrame(int width, int height, Random random) {
+        byte[] yuv = new byte[width * height + ((height + 1) / 2) * ((width + 1) & ~1)];
+        random.nextBytes(yuv);
+        return yuv;
+    }
+}
@@ -0,0 +1,93 @@
+package com.yaji.viewfinder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.graphics.ImageFormat;
+
+import junit.framework.TestCase;
+
+/*
+ * Plane layouts of the preview formats, as documented by ImageFormat.
+ */
+public class YuvFormatTest extends TestCase {
+    public void testNV21Layout() {
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, 640, 480);
+        assertEquals(640, format.getYStride());
+        assertEquals(640, format.getChromaRowStride());
+        assertEquals(2, format.getChromaPixelStride());
+        // V first.
+        assertEquals(640 * 480, format.getVOffset());
+        assertEquals(640 * 480 + 1, format.getUOffset());
+        assertEquals(640 * 480 * 3 / 2, format.getFrameSize());
+        assertTrue(format.isPackedNV21());
+    }
+
+    public void testNV21OddSize() {
+        // The last column and row have chroma of their own.
+        YuvFormat format = YuvFormat.create(YuvFormat.NV21, 33, 17);
+        assertEquals(34, format.getChromaRowStride());
+        assertEquals(33 * 17 + 34 * 9, format.getFrameSize());
+        assertFalse(format.isPackedNV21());
+    }
+
+    public void testYV12Layout() {
+        // 176 is a multiple of 16, its chroma rows (88) are padded to 96.
+        YuvFormat format = YuvFormat.create(YuvFormat.YV12, 176, 144);
+        int ySize = 176 * 144;
+        int chromaSize = 96 * 72;
+        assertEquals(176, format.getYStride());
+        assertEquals(96, format.getChromaRowStride());
+        assertEquals(1, format.getChromaPixelStride());
+        // V plane, then U plane.
+        assertEquals(ySize, format.getVOffset());
+        assertEquals(ySize + chromaSize, format.getUOffset());
+        assertEquals(ySize + 2 * chromaSize, format.getFrameSize());
+        assertFalse(format.isPackedNV21());
+    }
+
+    public void testYV12UnalignedWidth() {
+        YuvFormat format = YuvFormat.create(YuvFormat.YV12, 100, 50);
+        assertEquals(112, format.getYStride());
+        assertEquals(64, format.getChromaRowStride());
+        assertEquals(112 * 50 + 2 * 64 * 25, format.getFrameSize());
+    }
+
+    public void testYV12ConvertsLikeNV21() {
+        // The same picture in both layouts gives the same pixels.
+        final int width = 100;
+        final int height = 50;
+        YuvFormat nv21 = YuvFormat.create(YuvFormat.NV21, width, height);
+        YuvFormat yv12 = YuvFormat.create(YuvFormat.YV12, width, height);
+        byte[] nv21Data = YuvConverterTest.createFrame(width, height, new Random(20130718L));
+        byte[] yv12Data = new byte[yv12.getFrameSize()];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(nv21Data, y * width, yv12Data, y * yv12.getYStride(), width);
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int src = y * nv21.getChromaRowStride() + x * 2;
+                int dst = y * yv12.getChromaRowStride() + x;
+                yv12Data[yv12.getUOffset() + dst] = nv21Data[nv21.getUOffset() + src];
+                yv12Data[yv12.getVOffset() + dst] = nv21Data[nv21.getVOffset() + src];
+            }
+        }
+        int[] expected = new int[width * height];
+        int[] actual = new int[width * height];
+        ImageUtil.decodeYUV(expected, nv21Data, nv21);
+        ImageUtil.decodeYUV(actual, yv12Data, yv12);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testOnlyCameraFormatsSupported() {
+        assertTrue(YuvFormat.isSupported(YuvFormat.NV21));
+        assertTrue(YuvFormat.isSupported(YuvFormat.YV12));
+        assertFalse(YuvFormat.isSupported(ImageFormat.NV16));
+        try {
+            YuvFormat.create(ImageFormat.YUY2, 640, 480);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}